@@ -0,0 +1,90 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Collection of the retrieved jars from the directory tree made by ivy
+ * retrieve, as done by {@link DependencySolver} in COPY mode.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ArtifactCollectionBenchmark {
+
+	@Param({ "10" })
+	public int organisations;
+
+	@Param({ "20", "100" })
+	public int modules;
+
+	private File dir;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = BenchFixtures.tempDir("artifact-collection");
+		BenchFixtures.retrievedTree(dir, organisations, modules);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchFixtures.delete(dir);
+	}
+
+	@Benchmark
+	public List<String> recurseDir() {
+		List<String> jars = new ArrayList<>();
+		DependencySolver.recurseDir(dir, jars);
+		return jars;
+	}
+
+}
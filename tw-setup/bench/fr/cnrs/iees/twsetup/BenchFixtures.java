@@ -0,0 +1,197 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import au.edu.anu.omhtk.util.FileUtilities;
+
+/**
+ * Synthetic inputs for the benchmarks, generated from a fixed seed so that all
+ * runs work on the same data. Nothing here needs network access.
+ * 
+ * To run the benchmarks, compile the bench source folder with the JMH
+ * annotation processor (cf. bench/ivy.xml) and run {@code org.openjdk.jmh.Main}.
+ * 
+ */
+public class BenchFixtures {
+
+	public static final String FIXTURE_ORG = "org.bench";
+
+	private BenchFixtures() {
+	}
+
+	public static File tempDir(String prefix) throws IOException {
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	public static void delete(File dir) {
+		if (dir != null && dir.exists())
+			try {
+				FileUtilities.deleteFileTree(dir);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+	}
+
+	/**
+	 * class-like content: bytes drawn from a small alphabet, so that it compresses
+	 * about as well as real class files
+	 */
+	static byte[] content(Random random, int size) {
+		byte[] b = new byte[size];
+		for (int i = 0; i < size; i++)
+			b[i] = (byte) ('A' + random.nextInt(24));
+		return b;
+	}
+
+	/**
+	 * Generates jars looking like the dependencies of 3Worlds: a manifest and
+	 * {@code entries} classes each. The classes of a jar are in their own
+	 * packages, except for a few shared ones to produce duplicates.
+	 * 
+	 * @param dir       where to write the jars
+	 * @param count     number of jars
+	 * @param entries   number of classes per jar
+	 * @param entrySize size of a class, in bytes
+	 * @return the paths of the jars
+	 */
+	public static List<String> syntheticJars(File dir, int count, int entries, int entrySize) throws IOException {
+		Random random = new Random(42);
+		List<String> jars = new ArrayList<>();
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		dir.mkdirs();
+		for (int j = 0; j < count; j++) {
+			File jar = new File(dir, "lib" + j + "-1.0.jar");
+			try (JarOutputStream out = new JarOutputStream(new FileOutputStream(jar), manifest)) {
+				for (int i = 0; i < entries; i++) {
+					String name = (i % 50 == 0 ? "shared/" : "lib" + j + "/p" + (i / 100) + "/") + "C" + i + ".class";
+					out.putNextEntry(new JarEntry(name));
+					out.write(content(random, entrySize));
+					out.closeEntry();
+				}
+			}
+			jars.add(jar.getPath());
+		}
+		return jars;
+	}
+
+	/**
+	 * Generates a directory tree like the one ivy retrieve makes:
+	 * {@code org/module/jar/module-1.0.jar}, with empty jars.
+	 * 
+	 * @param dir     the root of the tree
+	 * @param orgs    number of organisations
+	 * @param modules number of modules per organisation
+	 */
+	public static void retrievedTree(File dir, int orgs, int modules) throws IOException {
+		for (int o = 0; o < orgs; o++)
+			for (int m = 0; m < modules; m++) {
+				File d = new File(dir, "org" + o + File.separator + "mod" + m + File.separator + "jar");
+				d.mkdirs();
+				new File(d, "mod" + m + "-1.0.jar").createNewFile();
+				new File(d, "mod" + m + "-1.0.pom").createNewFile();
+			}
+	}
+
+	/**
+	 * Generates a local ivy repository of {@code modules} modules forming a binary
+	 * tree of dependencies (module i depends on modules 2i+1 and 2i+2), an ivy
+	 * file depending on the root of the tree with a dynamic revision, and ivy
+	 * settings using only this repository and a private cache.
+	 * 
+	 * @param dir     where to put everything
+	 * @param modules number of modules in the repository
+	 * @param jarSize size of the class in each module jar, in bytes
+	 * @return the ivy settings file; the ivy file is {@code ivy.xml} next to it
+	 */
+	public static File fixtureRepository(File dir, int modules, int jarSize) throws IOException {
+		Random random = new Random(42);
+		File repo = new File(dir, "repo");
+		for (int i = 0; i < modules; i++) {
+			File mdir = new File(repo, FIXTURE_ORG + File.separator + "mod" + i + File.separator + "1.0");
+			new File(mdir, "ivys").mkdirs();
+			new File(mdir, "jars").mkdirs();
+			try (PrintWriter writer = new PrintWriter(new File(mdir, "ivys" + File.separator + "ivy.xml"))) {
+				writer.println("<ivy-module version=\"2.0\">");
+				writer.println("	<info organisation=\"" + FIXTURE_ORG + "\" module=\"mod" + i
+						+ "\" revision=\"1.0\" status=\"integration\" publication=\"20230101000000\"/>");
+				writer.println("	<publications><artifact type=\"jar\" ext=\"jar\"/></publications>");
+				writer.println("	<dependencies>");
+				for (int k = 2 * i + 1; k <= 2 * i + 2 && k < modules; k++)
+					writer.println("		<dependency org=\"" + FIXTURE_ORG + "\" name=\"mod" + k + "\" rev=\"1.0\"/>");
+				writer.println("	</dependencies>");
+				writer.println("</ivy-module>");
+			}
+			try (JarOutputStream out = new JarOutputStream(
+					new FileOutputStream(new File(mdir, "jars" + File.separator + "mod" + i + ".jar")))) {
+				out.putNextEntry(new JarEntry("mod" + i + "/X.class"));
+				out.write(content(random, jarSize));
+				out.closeEntry();
+			}
+		}
+		try (PrintWriter writer = new PrintWriter(new File(dir, "ivy.xml"))) {
+			writer.println("<ivy-module version=\"2.0\">");
+			writer.println("	<info organisation=\"fr.cnrs.iees.tw-setup\" module=\"tw-setup-bench\" revision=\"0.0.1\"/>");
+			writer.println("	<dependencies>");
+			writer.println("		<dependency org=\"" + FIXTURE_ORG + "\" name=\"mod0\" rev=\"latest.integration\"/>");
+			writer.println("	</dependencies>");
+			writer.println("</ivy-module>");
+		}
+		String pattern = repo.getPath() + "/[organisation]/[module]/[revision]/[type]s/[artifact].[ext]";
+		File settings = new File(dir, "ivysettings.xml");
+		try (PrintWriter writer = new PrintWriter(settings)) {
+			writer.println("<ivysettings>");
+			writer.println("	<settings defaultResolver=\"fixture\"/>");
+			writer.println("	<caches defaultCacheDir=\"" + new File(dir, "cache").getPath() + "\"/>");
+			writer.println("	<resolvers>");
+			writer.println("		<filesystem name=\"fixture\">");
+			writer.println("			<ivy pattern=\"" + pattern + "\"/>");
+			writer.println("			<artifact pattern=\"" + pattern + "\"/>");
+			writer.println("		</filesystem>");
+			writer.println("	</resolvers>");
+			writer.println("</ivysettings>");
+		}
+		return settings;
+	}
+
+}
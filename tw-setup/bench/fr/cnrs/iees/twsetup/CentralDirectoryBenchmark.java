@@ -0,0 +1,111 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scanning of the central directory of a large jar to sum the sizes of its
+ * classes, as done by {@link TwDepClassInfo}.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CentralDirectoryBenchmark {
+
+	@Param({ "10000", "100000" })
+	public int entries;
+
+	private File dir;
+	private File jar;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = BenchFixtures.tempDir("central-directory");
+		jar = new File(BenchFixtures.syntheticJars(dir, 1, entries, 100).get(0));
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchFixtures.delete(dir);
+	}
+
+	/** the way TwDepClassInfo does it */
+	@Benchmark
+	public long jarFile() throws IOException {
+		long sum = 0;
+		try (JarFile jf = new JarFile(jar)) {
+			Enumeration<JarEntry> e = jf.entries();
+			while (e.hasMoreElements()) {
+				JarEntry je = e.nextElement();
+				if (je.getName().endsWith(".class"))
+					sum += je.getCompressedSize() + je.getSize();
+			}
+		}
+		return sum;
+	}
+
+	/** reading the central directory only */
+	@Benchmark
+	public long zipDirectory() throws IOException {
+		long sum = 0;
+		try (FileChannel channel = FileChannel.open(jar.toPath(), StandardOpenOption.READ)) {
+			for (ZipRecord r : ZipDirectory.read(channel).records())
+				if (r.getName().endsWith(".class"))
+					sum += r.getCompressedSize() + r.getSize();
+		}
+		return sum;
+	}
+
+}
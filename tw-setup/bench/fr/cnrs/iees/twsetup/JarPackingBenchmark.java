@@ -0,0 +1,122 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Merging of dependency jars into a single jar, as done for tw-dep.jar.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JarPackingBenchmark {
+
+	@Param({ "20", "100" })
+	public int jarCount;
+
+	@Param({ "500" })
+	public int entriesPerJar;
+
+	@Param({ "2000" })
+	public int entrySize;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private File dir;
+	private List<String> jars;
+	private Manifest manifest;
+	private File output;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = BenchFixtures.tempDir("jar-packing");
+		jars = BenchFixtures.syntheticJars(new File(dir, "in"), jarCount, entriesPerJar, entrySize);
+		manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		output = new File(dir, "out.jar");
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchFixtures.delete(dir);
+	}
+
+	/** compressed entries copied as is */
+	@Benchmark
+	public long transfer() throws IOException {
+		return pack(false, false);
+	}
+
+	/** all entries inflated and compressed again */
+	@Benchmark
+	public long recompress() throws IOException {
+		return pack(true, false);
+	}
+
+	/** nothing changed since the previous build */
+	@Benchmark
+	public long incremental() throws IOException {
+		return pack(false, true);
+	}
+
+	private long pack(boolean recompress, boolean incremental) throws IOException {
+		JarPacker packer = new JarPacker(manifest, jars);
+		packer.setThreads(threads);
+		packer.setRecompress(recompress);
+		packer.setIncremental(incremental);
+		packer.pack(output);
+		return output.length();
+	}
+
+}
@@ -0,0 +1,99 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Dependency resolution by {@link DependencySolver} against a fixture ivy
+ * repository, with a warm ivy cache (the usual case when regenerating
+ * tw-dep.jar). Works offline, but uses {@link DependencySolver#destPath} as
+ * TwSetup does.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ResolutionBenchmark {
+
+	@Param({ "15", "63" })
+	public int modules;
+
+	@Param({ "COPY", "DIRECT", "LINK" })
+	public DependencySolver.RetrieveMode retrieveMode;
+
+	@Param({ "false", "true" })
+	public boolean cached;
+
+	private File dir;
+	private File settings;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = BenchFixtures.tempDir("resolution");
+		settings = BenchFixtures.fixtureRepository(dir, modules, 2000);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchFixtures.delete(dir);
+	}
+
+	@Benchmark
+	public Collection<String> getJars() {
+		DependencySolver solver = new DependencySolver(new File(dir, "ivy.xml").getPath(), cached);
+		solver.setSettingsFile(settings);
+		solver.setRetrieveMode(retrieveMode);
+		Collection<String> jars = solver.getJars();
+		if (jars.size() != modules)
+			throw new IllegalStateException("Resolved " + jars.size() + " jars instead of " + modules);
+		return jars;
+	}
+
+}
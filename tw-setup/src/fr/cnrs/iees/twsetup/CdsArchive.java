@@ -0,0 +1,168 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Logger;
+
+import fr.cnrs.iees.omhtk.utils.Logging;
+
+/**
+ * A class data sharing (AppCDS) archive of the classes of a packed jar, saved
+ * next to it ({@code tw-dep.jar} gives {@code tw-dep.jsa}). Applications
+ * started with {@code -XX:SharedArchiveFile=tw-dep.jsa -jar tw-dep.jar} then
+ * map the pre-parsed and pre-verified classes instead of loading them.
+ * 
+ * The class list is obtained from a training run ({@link CdsTraining}) in a
+ * separate JVM. The archive is stamped with a hash of the jar (and of the jars
+ * of its {@code Class-Path}) and of the JVM, and regenerated when any of them
+ * changes.
+ *
+ */
+public class CdsArchive {
+
+	private static Logger log = Logging.getLogger(CdsArchive.class);
+
+	private final File jarFile;
+	private final List<String> mainClasses;
+
+	/**
+	 * @param jarFile     the packed jar
+	 * @param mainClasses the entry points of the training run
+	 */
+	public CdsArchive(File jarFile, List<String> mainClasses) {
+		super();
+		this.jarFile = jarFile;
+		this.mainClasses = mainClasses;
+	}
+
+	/**
+	 * @param jarFile a packed jar
+	 * @return the CDS archive of this jar
+	 */
+	public static File archiveFile(File jarFile) {
+		String name = jarFile.getName();
+		if (name.endsWith(".jar"))
+			name = name.substring(0, name.length() - 4);
+		return new File(jarFile.getParentFile(), name + ".jsa");
+	}
+
+	private File keyFile() {
+		return new File(archiveFile(jarFile).getPath() + ".key");
+	}
+
+	// the jar and the jars of its Class-Path, all of which go into the archive
+	private List<File> classPath() throws IOException {
+		List<File> files = new ArrayList<>();
+		files.add(jarFile);
+		try (JarFile jf = new JarFile(jarFile)) {
+			Manifest manifest = jf.getManifest();
+			String cp = manifest == null ? null : manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+			if (cp != null)
+				for (String jar : cp.trim().split("\\s+"))
+					files.add(new File(jarFile.getParentFile(), jar));
+		}
+		return files;
+	}
+
+	// the archive is only valid for these jars and this JVM
+	private String key() throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (File f : classPath())
+				if (f.exists())
+					digest.update((f.getName() + "=" + JarBuildIndex.sha256(f) + "\n").getBytes(StandardCharsets.UTF_8));
+			digest.update((System.getProperty("java.home") + "\n" + System.getProperty("java.vm.version"))
+					.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * @return true if the archive exists and was made from the current jar
+	 */
+	public boolean isUpToDate() throws IOException {
+		File keyFile = keyFile();
+		return archiveFile(jarFile).exists() && keyFile.exists()
+				&& key().equals(new String(Files.readAllBytes(keyFile.toPath()), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * generates the archive, unless it is up to date
+	 * 
+	 * @return true if the archive was generated, false if it was up to date
+	 * @throws IOException if the archive could not be generated
+	 */
+	public boolean generate() throws IOException {
+		if (isUpToDate())
+			return false;
+		File archive = archiveFile(jarFile);
+		File keyFile = keyFile();
+		Files.deleteIfExists(keyFile.toPath());
+		// archives are made read-only by the JVM
+		archive.setWritable(true);
+		Files.deleteIfExists(archive.toPath());
+		File classList = new File(archive.getPath() + ".classlist");
+		File logFile = new File(archive.getPath() + ".log");
+		Files.deleteIfExists(logFile.toPath());
+		try (PhaseTimer.Phase phase = PhaseTimer.start("cds training")) {
+			CdsTraining.record(jarFile, mainClasses, classList, logFile);
+			phase.addEntries(Files.readAllLines(classList.toPath()).size());
+		}
+		try (PhaseTimer.Phase phase = PhaseTimer.start("cds dump")) {
+			CdsTraining.run("dump of the CDS archive " + archive.getName(), List.of(CdsTraining.java(), "-Xshare:dump",
+					"-XX:SharedClassListFile=" + classList.getPath(), "-XX:SharedArchiveFile=" + archive.getPath(),
+					"-cp", jarFile.getPath()), logFile);
+			phase.addBytes(archive.length());
+		}
+		if (!archive.exists())
+			throw new IOException("No CDS archive generated - see " + logFile);
+		Files.write(keyFile.toPath(), key().getBytes(StandardCharsets.UTF_8));
+		classList.delete();
+		log.fine("CDS archive " + archive + " generated");
+		return true;
+	}
+
+}
@@ -0,0 +1,215 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The training run of {@link CdsArchive}: loads the classes reachable from the
+ * main classes given as arguments, without initializing them - so that no user
+ * interface is started and this runs headless. Only application classes (those
+ * found in jars) are followed.
+ * 
+ * This runs in a separate JVM, with the packed jar first on the class path, and
+ * must only depend on the JDK and {@link ClassReferences}. The classes loaded,
+ * in loading order, are recorded by the JVM in a class list (cf.
+ * {@link #record(File, List, File, File)}).
+ *
+ */
+public class CdsTraining {
+
+	private static final String CHECK = "-check";
+	private static final String MISSING = "MISSING ";
+
+	/**
+	 * @return the java launcher of the running JVM
+	 */
+	public static String java() {
+		return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+	}
+
+	/**
+	 * runs the training in a separate JVM and records the classes it loaded
+	 * 
+	 * @param jarFile     the packed jar
+	 * @param mainClasses the entry points
+	 * @param classList   where to write the class list, in JVM format
+	 * @param logFile     where to append the output of the JVM
+	 * @throws IOException if the training run failed
+	 */
+	public static void record(File jarFile, List<String> mainClasses, File classList, File logFile)
+			throws IOException {
+		// the training code comes after the jar, so that the class path of the jar is
+		// a prefix of the one used for the training
+		List<String> command = new ArrayList<>(List.of(java(), "-Xshare:off", "-Djava.awt.headless=true",
+				"-XX:DumpLoadedClassList=" + classList.getPath(), "-cp",
+				jarFile.getPath() + File.pathSeparator + trainingPath(), CdsTraining.class.getName()));
+		command.addAll(mainClasses);
+		run("training of " + String.join(", ", mainClasses), command, logFile);
+		// the training classes are not in the jar
+		List<String> classes = new ArrayList<>();
+		for (String line : Files.readAllLines(classList.toPath()))
+			if (!line.startsWith(CdsTraining.class.getName().replace('.', '/'))
+					&& !line.startsWith(ClassReferences.class.getName().replace('.', '/')))
+				classes.add(line);
+		Files.write(classList.toPath(), classes);
+	}
+
+	/**
+	 * checks a jar by a headless launch in a separate JVM: the classes reachable
+	 * from the roots are loaded without being initialized, and the types of their
+	 * fields and methods are resolved, as they would be when running. Roots absent
+	 * from the jar are reported missing too.
+	 * 
+	 * @param jarFile the packed jar
+	 * @param roots   the classes to start from, e.g. main classes and classes
+	 *                loaded by name
+	 * @param logFile where to append the output of the JVM
+	 * @return the classes (internal names) which could not be found
+	 * @throws IOException if the check could not be run
+	 */
+	public static Set<String> check(File jarFile, List<String> roots, File logFile) throws IOException {
+		List<String> command = new ArrayList<>(List.of(java(), "-Djava.awt.headless=true", "-cp",
+				jarFile.getPath() + File.pathSeparator + trainingPath(), CdsTraining.class.getName(), CHECK));
+		command.addAll(roots);
+		long start = logFile.length();
+		run("startup check of " + jarFile.getName(), command, logFile);
+		Set<String> missing = new TreeSet<>();
+		byte[] bytes = Files.readAllBytes(logFile.toPath());
+		for (String line : new String(bytes, (int) start, bytes.length - (int) start, StandardCharsets.UTF_8)
+				.split("\n"))
+			if (line.startsWith(MISSING))
+				missing.add(line.substring(MISSING.length()).trim().replace('.', '/'));
+		return missing;
+	}
+
+	// where the classes of this program are
+	private static String trainingPath() throws IOException {
+		try {
+			return new File(CdsTraining.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+		} catch (URISyntaxException | NullPointerException e) {
+			throw new IOException("Cannot locate the training classes", e);
+		}
+	}
+
+	/**
+	 * runs a java command, appending its output to logFile
+	 * 
+	 * @param step    what the command does, for error messages
+	 * @param command the command line
+	 * @param logFile where to append the output
+	 * @throws IOException if the command failed, with its exit code and output
+	 */
+	static void run(String step, List<String> command, File logFile) throws IOException {
+		// only the output of this command is reported
+		long start = logFile.length();
+		Process process = new ProcessBuilder(command).redirectErrorStream(true)
+				.redirectOutput(ProcessBuilder.Redirect.appendTo(logFile)).start();
+		try {
+			int status = process.waitFor();
+			if (status != 0)
+				throw new IOException("The " + step + " failed (exit code " + status + "), output:\n"
+						+ output(logFile, start) + "(full log: " + logFile + ")");
+		} catch (InterruptedException e) {
+			process.destroy();
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	// the end of a log file from an offset, at most 4 kB
+	private static String output(File logFile, long start) throws IOException {
+		byte[] bytes = Files.readAllBytes(logFile.toPath());
+		int from = (int) Math.max(start, bytes.length - 4096);
+		return (from > start ? "...\n" : "") + new String(bytes, from, bytes.length - from, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * with {@code -check} as first argument, the check of
+	 * {@link #check(File, List, File)}, else the training
+	 */
+	public static void main(String[] args) {
+		ClassLoader loader = ClassLoader.getSystemClassLoader();
+		Deque<String> queue = new ArrayDeque<>();
+		Set<String> seen = new HashSet<>();
+		boolean check = args.length > 0 && args[0].equals(CHECK);
+		for (String mainClass : List.of(args).subList(check ? 1 : 0, args.length))
+			queue.add(mainClass.replace('.', '/'));
+		int loaded = 0;
+		while (!queue.isEmpty()) {
+			String name = queue.poll();
+			if (!seen.add(name))
+				continue;
+			URL url = loader.getResource(name + ".class");
+			if (url == null && check)
+				System.out.println(MISSING + name);
+			if (url == null || !url.getProtocol().equals("jar"))
+				continue;
+			try {
+				Class<?> c = Class.forName(name.replace('/', '.'), false, loader);
+				loaded++;
+				if (check) {
+					c.getDeclaredFields();
+					c.getDeclaredMethods();
+					c.getDeclaredConstructors();
+				}
+			} catch (NoClassDefFoundError e) {
+				if (check)
+					System.out.println(MISSING + e.getMessage());
+				continue;
+			} catch (ClassNotFoundException | LinkageError e) {
+				// not loadable here - not in the archive either
+				continue;
+			}
+			try (InputStream is = url.openStream()) {
+				for (String ref : ClassReferences.of(is.readAllBytes()))
+					if (!seen.contains(ref))
+						queue.add(ref);
+			} catch (IOException e) {
+				// loaded, but its references are unknown
+			}
+		}
+		System.out.println(loaded + " classes loaded");
+	}
+
+}
@@ -0,0 +1,131 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A minimal class file reader which lists the names of the classes a class
+ * refers to, from its constant pool only (no bytecode analysis). This finds all
+ * the classes needed for linking (class entries, field and method descriptors,
+ * signatures, annotations) and, as a bonus, the string constants which look
+ * like class names (e.g. arguments to {@code Class.forName()}).
+ * 
+ * Names are returned in internal form ({@code a/b/C}). Some of them may not be
+ * class names at all: callers must check them against the known classes.
+ *
+ */
+public class ClassReferences {
+
+	private static final int MAGIC = 0xCAFEBABE;
+
+	private ClassReferences() {
+	}
+
+	/**
+	 * @param classFile the content of a class file
+	 * @return the names of the classes it may refer to
+	 * @throws IOException if this is not a valid class file
+	 */
+	public static Set<String> of(byte[] classFile) throws IOException {
+		Set<String> names = new HashSet<>();
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(classFile));
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a class file");
+		in.readUnsignedShort(); // minor version
+		in.readUnsignedShort(); // major version
+		int count = in.readUnsignedShort();
+		for (int i = 1; i < count; i++) {
+			int tag = in.readUnsignedByte();
+			switch (tag) {
+			case 1: // Utf8 - class names, descriptors, signatures and string constants
+				addNames(in.readUTF(), names);
+				break;
+			case 7: // Class
+			case 8: // String
+			case 16: // MethodType
+			case 19: // Module
+			case 20: // Package
+				in.readUnsignedShort();
+				break;
+			case 15: // MethodHandle
+				in.readUnsignedByte();
+				in.readUnsignedShort();
+				break;
+			case 3: // Integer
+			case 4: // Float
+			case 9: // Fieldref
+			case 10: // Methodref
+			case 11: // InterfaceMethodref
+			case 12: // NameAndType
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				in.readInt();
+				break;
+			case 5: // Long
+			case 6: // Double
+				in.readLong();
+				i++; // takes two slots
+				break;
+			default:
+				throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+		return names;
+	}
+
+	// all the utf8 constants of the pool are considered: the string itself may be a
+	// class name (internal or binary form) and it may contain descriptors (Lx/y/Z;)
+	private static void addNames(String s, Set<String> names) {
+		if (s.isEmpty())
+			return;
+		String name = s;
+		while (name.startsWith("["))
+			name = name.substring(1);
+		if (name.startsWith("L") && name.endsWith(";"))
+			name = name.substring(1, name.length() - 1);
+		names.add(name.replace('.', '/'));
+		int start = s.indexOf('L');
+		while (start >= 0) {
+			int end = s.indexOf(';', start);
+			if (end < 0)
+				break;
+			// descriptors and signatures: types end at ';' or at '<' (generic arguments)
+			int generic = s.indexOf('<', start);
+			names.add(s.substring(start + 1, generic > start && generic < end ? generic : end));
+			start = s.indexOf('L', start + 1);
+		}
+	}
+
+}
@@ -0,0 +1,310 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * How each entry of a packed jar is compressed, depending on its content. Entry
+ * names are sorted into categories (cf. {@link Category}) and each category is
+ * given an action: {@link #KEEP} the compression found in the input jar,
+ * {@link #STORE} without compression, or deflate at a given level (1-9).
+ * 
+ * By default, classes and other resources keep their compression (i.e. are
+ * copied as is), and already compressed content (images, compressed fonts,
+ * archives, media) is stored, since deflating it again costs time at build and
+ * load time for little or no gain.
+ * 
+ * A policy is written as a comma-separated list of presets and
+ * {@code category=action} pairs, later items overriding earlier ones, e.g.
+ * {@code uncompressed-classes,native=9}. Presets are:
+ * <ul>
+ * <li>{@code default}: see above</li>
+ * <li>{@code uncompressed-classes}: default, but classes are stored - a bigger
+ * jar which loads faster</li>
+ * <li>{@code fastest}: everything but compressed content deflated at level
+ * 1</li>
+ * <li>{@code smallest}: everything but compressed content deflated at level
+ * 9</li>
+ * </ul>
+ *
+ */
+public class CompressionPolicy {
+
+	/**
+	 * Entry categories, by name extension
+	 */
+	public enum Category {
+		/** java classes */
+		CLASS,
+		/** content which is already compressed: images, archives, media, etc. */
+		COMPRESSED,
+		/** native libraries (e.g. those of JavaFX) */
+		NATIVE,
+		/** everything else (text, xml, properties, uncompressed fonts...) */
+		OTHER;
+	}
+
+	/** copy the entry with the compression it has in its input jar */
+	public static final int KEEP = -1;
+	/** store the entry without compression */
+	public static final int STORE = 0;
+
+	private static final Set<String> COMPRESSED_EXTENSIONS = Set.of("png", "jpg", "jpeg", "gif", "ico", "webp",
+			"woff", "woff2", "zip", "jar", "jmod", "war", "gz", "tgz", "bz2", "xz", "7z", "mp3", "mp4", "m4a", "ogg",
+			"avi", "mov", "pdf");
+
+	private static final Set<String> NATIVE_EXTENSIONS = Set.of("so", "dll", "dylib", "jnilib");
+
+	private final Map<Category, Integer> actions = new EnumMap<>(Category.class);
+
+	/**
+	 * the default policy
+	 */
+	public CompressionPolicy() {
+		super();
+		preset("default");
+	}
+
+	/**
+	 * @param spec a comma-separated list of presets and {@code category=action}
+	 *             pairs, where action is keep, store or a deflate level (1-9)
+	 * @return the policy
+	 * @throws IllegalArgumentException if the spec is not understood
+	 */
+	public static CompressionPolicy parse(String spec) {
+		CompressionPolicy policy = new CompressionPolicy();
+		for (String item : spec.split(",")) {
+			item = item.trim().toLowerCase(Locale.ROOT);
+			if (item.isEmpty())
+				continue;
+			int eq = item.indexOf('=');
+			if (eq < 0) {
+				if (!policy.preset(item))
+					throw new IllegalArgumentException("Unknown compression preset: " + item);
+			} else {
+				Category category;
+				try {
+					category = Category.valueOf(item.substring(0, eq).toUpperCase(Locale.ROOT));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("Unknown entry category: " + item.substring(0, eq));
+				}
+				policy.set(category, parseAction(item.substring(eq + 1)));
+			}
+		}
+		return policy;
+	}
+
+	private static int parseAction(String action) {
+		if (action.equals("keep"))
+			return KEEP;
+		if (action.equals("store"))
+			return STORE;
+		try {
+			int level = Integer.parseInt(action);
+			if (level >= 1 && level <= 9)
+				return level;
+		} catch (NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Unknown compression action: " + action);
+	}
+
+	private static String actionName(int action) {
+		if (action == KEEP)
+			return "keep";
+		if (action == STORE)
+			return "store";
+		return String.valueOf(action);
+	}
+
+	private boolean preset(String name) {
+		switch (name) {
+		case "default":
+			actions.put(Category.CLASS, KEEP);
+			actions.put(Category.COMPRESSED, STORE);
+			actions.put(Category.NATIVE, KEEP);
+			actions.put(Category.OTHER, KEEP);
+			return true;
+		case "uncompressed-classes":
+			preset("default");
+			actions.put(Category.CLASS, STORE);
+			return true;
+		case "fastest":
+		case "smallest":
+			int level = name.equals("fastest") ? Deflater.BEST_SPEED : Deflater.BEST_COMPRESSION;
+			actions.put(Category.CLASS, level);
+			actions.put(Category.COMPRESSED, STORE);
+			actions.put(Category.NATIVE, level);
+			actions.put(Category.OTHER, level);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @param category an entry category
+	 * @param action   {@link #KEEP}, {@link #STORE} or a deflate level (1-9)
+	 */
+	public void set(Category category, int action) {
+		actions.put(category, action);
+	}
+
+	/**
+	 * @param category an entry category
+	 * @return the action for this category
+	 */
+	public int action(Category category) {
+		return actions.get(category);
+	}
+
+	/**
+	 * @param name an entry name
+	 * @return its category
+	 */
+	public static Category category(String name) {
+		if (name.endsWith(".class"))
+			return Category.CLASS;
+		int dot = name.lastIndexOf('.');
+		if (dot < 0 || dot < name.lastIndexOf('/'))
+			return Category.OTHER;
+		String ext = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+		if (COMPRESSED_EXTENSIONS.contains(ext))
+			return Category.COMPRESSED;
+		if (NATIVE_EXTENSIONS.contains(ext))
+			return Category.NATIVE;
+		return Category.OTHER;
+	}
+
+	/**
+	 * @param name an entry name
+	 * @return the action for this entry
+	 */
+	public int action(String name) {
+		return action(category(name));
+	}
+
+	/**
+	 * @return the normalized spec of this policy (e.g. to detect that a jar was
+	 *         built with another policy)
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Category c : Category.values()) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(c.name().toLowerCase(Locale.ROOT)).append('=').append(actionName(actions.get(c)));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * The outcome of a policy on a packed jar: per category, the number of
+	 * entries, their uncompressed and packed sizes and the time spent
+	 * compressing them. Updated concurrently by the compression threads.
+	 */
+	public static class Stats {
+		private final Map<Category, AtomicLong[]> counts = new EnumMap<>(Category.class);
+
+		public Stats() {
+			super();
+			for (Category c : Category.values())
+				counts.put(c, new AtomicLong[] { new AtomicLong(), new AtomicLong(), new AtomicLong(),
+						new AtomicLong() });
+		}
+
+		/**
+		 * @param name   the entry name
+		 * @param size   its uncompressed size
+		 * @param packed its size in the jar
+		 * @param nanos  the time spent (de)compressing it, 0 if copied as is
+		 */
+		public void add(String name, long size, long packed, long nanos) {
+			AtomicLong[] c = counts.get(category(name));
+			c[0].incrementAndGet();
+			c[1].addAndGet(size);
+			c[2].addAndGet(packed);
+			c[3].addAndGet(nanos);
+		}
+
+		public long entries(Category category) {
+			return counts.get(category)[0].get();
+		}
+
+		public long size(Category category) {
+			return counts.get(category)[1].get();
+		}
+
+		public long packedSize(Category category) {
+			return counts.get(category)[2].get();
+		}
+
+		public long nanos(Category category) {
+			return counts.get(category)[3].get();
+		}
+
+		/**
+		 * @param policy the policy these stats were obtained with
+		 * @return a table of the size and time per category
+		 */
+		public String report(CompressionPolicy policy) {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%-12s%8s%10s%14s%14s%8s%12s\n", "category", "action", "entries", "size",
+					"packed", "ratio", "time (ms)"));
+			long[] total = new long[4];
+			for (Category c : Category.values()) {
+				if (entries(c) == 0)
+					continue;
+				sb.append(line(c.name().toLowerCase(Locale.ROOT), actionName(policy.action(c)), entries(c), size(c),
+						packedSize(c), nanos(c)));
+				total[0] += entries(c);
+				total[1] += size(c);
+				total[2] += packedSize(c);
+				total[3] += nanos(c);
+			}
+			sb.append(line("total", "", total[0], total[1], total[2], total[3]));
+			return sb.toString();
+		}
+
+		private static String line(String name, String action, long entries, long size, long packed,
+				long nanos) {
+			return String.format("%-12s%8s%10d%14d%14d%8.2f%12.1f\n", name, action, entries, size, packed,
+					size == 0 ? 1.0 : (double) packed / size, nanos / 1e6);
+		}
+	}
+
+}
@@ -0,0 +1,211 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.ivy.core.module.descriptor.Artifact;
+import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.report.ArtifactDownloadReport;
+
+/**
+ * The exact result of a dependency resolution: every artifact with its
+ * resolved revision and the SHA-256 of its content. Resolving from a lock
+ * involves no dynamic revisions, hence no repository listings, and gives the
+ * same artifacts on every build.
+ * 
+ * The lock file is only (re)written when explicitly asked for.
+ *
+ */
+public class DependencyLock {
+
+	/**
+	 * One locked artifact
+	 */
+	public static class Entry {
+		public final String org;
+		public final String module;
+		public final String rev;
+		public final String name;
+		public final String type;
+		public final String ext;
+		/** maven classifier, or null */
+		public final String classifier;
+		public final String sha256;
+
+		public Entry(String org, String module, String rev, String name, String type, String ext, String classifier,
+				String sha256) {
+			this.org = org;
+			this.module = module;
+			this.rev = rev;
+			this.name = name;
+			this.type = type;
+			this.ext = ext;
+			this.classifier = classifier;
+			this.sha256 = sha256;
+		}
+
+		public String key() {
+			return org + ":" + module + ":" + rev + ":" + name + ":" + type + ":" + ext
+					+ (classifier == null ? "" : ":" + classifier);
+		}
+
+		static String key(Artifact a) {
+			ModuleRevisionId mrid = a.getModuleRevisionId();
+			return new Entry(mrid.getOrganisation(), mrid.getName(), mrid.getRevision(), a.getName(), a.getType(),
+					a.getExt(), a.getExtraAttribute("classifier"), null).key();
+		}
+	}
+
+	private final List<Entry> entries = new ArrayList<>();
+
+	public List<Entry> entries() {
+		return entries;
+	}
+
+	/**
+	 * Makes a lock from the result of a resolution
+	 * 
+	 * @param reports the downloaded artifacts
+	 * @return the lock
+	 * @throws IOException if an artifact cannot be read
+	 */
+	public static DependencyLock of(ArtifactDownloadReport[] reports) throws IOException {
+		DependencyLock lock = new DependencyLock();
+		for (ArtifactDownloadReport adr : reports)
+			if (adr.getLocalFile() != null) {
+				Artifact a = adr.getArtifact();
+				ModuleRevisionId mrid = a.getModuleRevisionId();
+				lock.entries.add(new Entry(mrid.getOrganisation(), mrid.getName(), mrid.getRevision(), a.getName(),
+						a.getType(), a.getExt(), a.getExtraAttribute("classifier"),
+						JarBuildIndex.sha256(adr.getLocalFile())));
+			}
+		return lock;
+	}
+
+	public static DependencyLock load(File lockFile) throws IOException {
+		DependencyLock lock = new DependencyLock();
+		try (BufferedReader fr = new BufferedReader(new FileReader(lockFile))) {
+			String line = fr.readLine();
+			while (line != null) {
+				if (!line.startsWith("//") && !line.isBlank()) {
+					String[] s = line.split("\t");
+					if (s.length != 8)
+						throw new IOException("Invalid lock file line: " + line);
+					lock.entries.add(new Entry(s[0], s[1], s[2], s[3], s[4], s[5], s[6].equals("-") ? null : s[6], s[7]));
+				}
+				line = fr.readLine();
+			}
+		}
+		return lock;
+	}
+
+	public void save(File lockFile) throws IOException {
+		try (BufferedWriter fw = new BufferedWriter(new FileWriter(lockFile))) {
+			fw.write("//GENERATED - DO NOT EDIT THIS FILE - regenerate it with TwSetup -lock");
+			fw.newLine();
+			for (Entry e : entries) {
+				fw.write(e.org + "\t" + e.module + "\t" + e.rev + "\t" + e.name + "\t" + e.type + "\t" + e.ext + "\t"
+						+ (e.classifier == null ? "-" : e.classifier) + "\t" + e.sha256);
+				fw.newLine();
+			}
+		}
+	}
+
+	/**
+	 * Writes an ivy file declaring exactly the locked artifacts, as
+	 * non-transitive dependencies with fixed revisions.
+	 * 
+	 * @param ivyFile the file to write
+	 * @return the file written
+	 * @throws IOException
+	 */
+	public File writeIvyFile(File ivyFile) throws IOException {
+		// group artifacts by module, keeping the lock order
+		Map<String, List<Entry>> modules = new LinkedHashMap<>();
+		for (Entry e : entries)
+			modules.computeIfAbsent(e.org + ":" + e.module + ":" + e.rev, k -> new ArrayList<>()).add(e);
+		try (PrintWriter writer = new PrintWriter(ivyFile)) {
+			writer.println("<ivy-module version=\"2.0\" xmlns:m=\"http://ant.apache.org/ivy/maven\">");
+			writer.println("	<info organisation=\"fr.cnrs.iees.tw-setup\" module=\"tw-setup-locked\" revision=\"0.0.1\"/>");
+			writer.println("	<dependencies>");
+			for (List<Entry> artifacts : modules.values()) {
+				Entry m = artifacts.get(0);
+				writer.println("		<dependency org=\"" + m.org + "\" name=\"" + m.module + "\" rev=\"" + m.rev
+						+ "\" transitive=\"false\">");
+				for (Entry a : artifacts)
+					writer.println("			<artifact name=\"" + a.name + "\" type=\"" + a.type + "\" ext=\"" + a.ext
+							+ "\"" + (a.classifier == null ? "" : " m:classifier=\"" + a.classifier + "\"") + "/>");
+				writer.println("		</dependency>");
+			}
+			writer.println("	</dependencies>");
+			writer.println("</ivy-module>");
+		}
+		return ivyFile;
+	}
+
+	/**
+	 * Checks that resolved artifacts match this lock
+	 * 
+	 * @param reports the downloaded artifacts
+	 * @return the list of mismatches (empty if all is fine)
+	 * @throws IOException if an artifact cannot be read
+	 */
+	public List<String> verify(ArtifactDownloadReport[] reports) throws IOException {
+		List<String> problems = new ArrayList<>();
+		Map<String, Entry> locked = new HashMap<>();
+		for (Entry e : entries)
+			locked.put(e.key(), e);
+		for (ArtifactDownloadReport adr : reports)
+			if (adr.getLocalFile() != null) {
+				String key = Entry.key(adr.getArtifact());
+				Entry e = locked.remove(key);
+				if (e == null)
+					problems.add("Artifact not in lock file: " + key);
+				else if (!e.sha256.equals(JarBuildIndex.sha256(adr.getLocalFile())))
+					problems.add("Checksum mismatch for " + key);
+			}
+		for (String key : locked.keySet())
+			problems.add("Locked artifact not resolved: " + key);
+		return problems;
+	}
+
+}
@@ -29,17 +29,40 @@
  **************************************************************************/
 package fr.cnrs.iees.twsetup;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import org.apache.ivy.Ivy;
+import org.apache.ivy.core.IvyPatternHelper;
 import org.apache.ivy.core.LogOptions;
+import org.apache.ivy.core.module.descriptor.Artifact;
 import org.apache.ivy.core.module.descriptor.ModuleDescriptor;
 import org.apache.ivy.core.module.id.ModuleRevisionId;
+import org.apache.ivy.core.report.ArtifactDownloadReport;
+import org.apache.ivy.core.report.DownloadStatus;
 import org.apache.ivy.core.report.ResolveReport;
+import org.apache.ivy.core.resolve.DownloadOptions;
+import org.apache.ivy.core.resolve.ResolveOptions;
 import org.apache.ivy.core.retrieve.RetrieveOptions;
 
 import au.edu.anu.omhtk.util.FileUtilities;
@@ -59,12 +82,74 @@ import fr.cnrs.iees.omhtk.utils.Logging;
  *
  */
 public class DependencySolver  {
+
+	/**
+	 * How resolved artifacts are made available
+	 */
+	public enum RetrieveMode {
+		/** artifacts are copied by ivy retrieve into {@code destPath} (the historical way) */
+		COPY,
+		/** artifacts are used where they are in the ivy cache - nothing is copied */
+		DIRECT,
+		/** as DIRECT, but links to the artifacts are also made in {@code destPath} */
+		LINK
+	}
+
+	/**
+	 * How the lock file is used
+	 */
+	public enum LockMode {
+		/** lock file ignored */
+		NONE,
+		/** normal resolution, then the lock file is rewritten from its result */
+		UPDATE,
+		/** resolution of exactly what the lock file says, checking checksums */
+		STRICT
+	}
+
+	/**
+	 * Which ivy settings are generated for the resolution
+	 */
+	public enum SettingsProfile {
+		/** metadata is checked against the repositories at every resolution */
+		DEFAULT,
+		/** no remote access: the local repository, the ivy cache and ~/.m2/repository only */
+		OFFLINE,
+		/** cached metadata is trusted, dynamic revisions are resolved again after {@code cacheTtl} */
+		CACHED,
+		/** everything is resolved and checked again, ignoring the ivy cache */
+		FRESH
+	}
+
 	public static final String destPath= Project.TW_HOME + File.separator + "tmp"; 
+	// where artifacts are retrieved - must not contain anything else since ivy syncs it
+	private static final String libPath = destPath + File.separator + "lib";
+	// the list of jars found by the last resolution
+	private static final String cacheFileName = "resolution-cache.txt";
+	// the local ivy repository, where the 3worlds libraries are published
+	static final File localRepository = new File(
+			System.getProperty("user.home") + File.separator + ".ivy2" + File.separator + "local");
 
 	private static Logger log = Logging.getLogger(DependencySolver.class);
 
 	private File ivySettingsXmlFile = null;
 	private File dependencyFile = null;
+	private boolean cached = false;
+	private RetrieveMode retrieveMode = RetrieveMode.COPY;
+	private int downloadThreads = 1;
+	private String remoteRoot = "https://repo1.maven.org/maven2";
+	private LockMode lockMode = LockMode.NONE;
+	private File lockFile = null;
+	private DependencyLock lock = null;
+	// what the last resolution in strict mode found different from the lock file
+	private List<String> lockProblems = new ArrayList<>();
+	private SettingsProfile settingsProfile = SettingsProfile.DEFAULT;
+	private File userSettingsFile = null;
+	// the configured ivy instance, kept between resolutions
+	private IvySession session = new IvySession();
+	private String ivySettingsXml = null;
+	private String cacheTtl = "1h";
+	private boolean localFastPath = true;
 
 	/**
 	 * typically, root should be ~/.3w/lib
@@ -73,9 +158,23 @@ public class DependencySolver  {
 	 *                dependencies
 	 */
 	public DependencySolver(String depFile) {
+		this(depFile, false);
+	}
+
+	/**
+	 * In cached mode, the result of the previous resolution is kept in
+	 * {@code destPath} and reused as long as the ivy file, the ivy settings and
+	 * the local ivy repository did not change.
+	 * 
+	 * @param depFile the location of the ivy file (ivy.xml) to search for
+	 *                dependencies
+	 * @param cached  true to reuse the previous resolution if possible
+	 */
+	public DependencySolver(String depFile, boolean cached) {
 		super();
+		this.cached = cached;
 		File dir = new File(destPath);
-		if (dir.exists())
+		if (dir.exists() && !cached)
 			try {
 				FileUtilities.deleteFileTree(dir);//???
 			} catch (IOException e) {
@@ -92,7 +191,95 @@ public class DependencySolver  {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		buildIvySettingsFile();
+	}
+
+	public void setRetrieveMode(RetrieveMode retrieveMode) {
+		this.retrieveMode = retrieveMode;
+	}
+
+	/**
+	 * With more than 1 thread, dependencies are first resolved without
+	 * downloading anything, then the artifacts are downloaded (and their
+	 * checksums verified) concurrently.
+	 * 
+	 * @param downloadThreads the maximal number of concurrent downloads
+	 */
+	public void setDownloadThreads(int downloadThreads) {
+		this.downloadThreads = downloadThreads;
+	}
+
+	/**
+	 * @param remoteRoot the url of the maven repository to use instead of maven
+	 *                   central, e.g. a local mirror ({@code file:} urls work)
+	 */
+	public void setRemoteRoot(String remoteRoot) {
+		this.remoteRoot = remoteRoot;
+	}
+
+	/**
+	 * @param lockFile the lock file
+	 * @param lockMode how to use it
+	 */
+	public void setLock(File lockFile, LockMode lockMode) {
+		this.lockFile = lockFile;
+		this.lockMode = lockMode;
+	}
+
+	/**
+	 * @return the differences with the lock file found by the last call to
+	 *         {@link #getJars()} in strict mode - empty if none
+	 */
+	public List<String> getLockProblems() {
+		return lockProblems;
+	}
+
+	/**
+	 * @param settingsProfile the kind of ivy settings to generate
+	 */
+	public void setSettingsProfile(SettingsProfile settingsProfile) {
+		this.settingsProfile = settingsProfile;
+	}
+
+	/**
+	 * A user-supplied ivy settings file replaces the generated one. The
+	 * settings profile then only decides whether the ivy cache is refreshed
+	 * ({@link SettingsProfile#FRESH}).
+	 * 
+	 * @param userSettingsFile the ivy settings file, or null to generate one
+	 */
+	public void setSettingsFile(File userSettingsFile) {
+		this.userSettingsFile = userSettingsFile;
+	}
+
+	/**
+	 * Each solver has its own {@link IvySession}, kept for all its resolutions.
+	 * Solvers given the same session share the ivy configuration and the parsed
+	 * module descriptors.
+	 * 
+	 * @param session the ivy session to use
+	 */
+	public void setSession(IvySession session) {
+		this.session = session;
+	}
+
+	/**
+	 * When possible, the 3Worlds libraries of the local ivy repository are
+	 * resolved by a {@link LocalResolver} and only the other dependencies by ivy.
+	 * This is not done with a lock file or a user-supplied ivy settings file.
+	 * 
+	 * @param localFastPath false to resolve everything with ivy
+	 */
+	public void setLocalFastPath(boolean localFastPath) {
+		this.localFastPath = localFastPath;
+	}
+
+	/**
+	 * @param cacheTtl how long dynamic revisions resolved in {@link SettingsProfile#CACHED}
+	 *                 profile are trusted, in ivy duration format (e.g. {@code 2h 30m},
+	 *                 {@code 1d}, {@code eternal})
+	 */
+	public void setCacheTtl(String cacheTtl) {
+		this.cacheTtl = cacheTtl;
 	}
 
 	/**
@@ -100,10 +287,33 @@ public class DependencySolver  {
 	 * ~/.ivy2/cache/org.apache.ivy/ivy/jars/ivy-2.2.0.jar
 	 */
 	private void buildIvySettingsFile() {
+		if (userSettingsFile != null) {
+			ivySettingsXmlFile = userSettingsFile;
+			return;
+		}
+		// fixed revisions from a lock file need no revalidation
+		boolean checkModified = (settingsProfile == SettingsProfile.DEFAULT && lockMode != LockMode.STRICT)
+				|| settingsProfile == SettingsProfile.FRESH;
+		String ttl = null;
+		if (settingsProfile == SettingsProfile.OFFLINE)
+			ttl = "eternal";
+		else if (settingsProfile == SettingsProfile.CACHED)
+			ttl = cacheTtl;
+		else if (settingsProfile == SettingsProfile.FRESH)
+			ttl = "0ms";
+		// offline, 'public' keeps its name so that what it put in the cache is still found
+		String publicRoot = settingsProfile == SettingsProfile.OFFLINE
+				? new File(System.getProperty("user.home") + File.separator + ".m2" + File.separator + "repository")
+						.toURI().toString()
+				: remoteRoot;
 		try {
-			PrintWriter writer = new PrintWriter(ivySettingsXmlFile);
+			// kept in memory for ivy, written for the resolution cache key and for checking
+			StringWriter xml = new StringWriter();
+			PrintWriter writer = new PrintWriter(xml);
 			writer.println("<ivysettings>");
 			writer.println("	<settings defaultResolver=\"default\"/>");
+			if (ttl != null)
+				writer.println("	<property name=\"ivy.cache.ttl.default\" value=\"" + ttl + "\"/>");
 			writer.println(
 					"	<property name=\"ivy.shared.default.root\" value=\"${ivy.default.ivy.user.dir}/cache\" override=\"false\"/>");
 			writer.println(
@@ -117,14 +327,16 @@ public class DependencySolver  {
 			writer.println(
 					"	<property name=\"ivy.local.default.artifact.pattern\" value=\"[organisation]/[module]/[revision]/[type]s/[artifact].[ext]\" override=\"false\"/>");
 			writer.println("	<resolvers>");
-			writer.println("		<ibiblio name=\"public\" m2compatible=\"true\"  root=\"https://repo1.maven.org/maven2\"/>");
+			writer.println("		<ibiblio name=\"public\" m2compatible=\"true\"  root=\"" + publicRoot + "\"/>");
 			writer.println("		<filesystem name=\"shared\">");
 			writer.println(
 					"			<ivy pattern=\"${ivy.shared.default.root}/${ivy.shared.default.ivy.pattern}\"/>");
 			writer.println(
 					"			<artifact pattern=\"${ivy.shared.default.root}/${ivy.shared.default.artifact.pattern}\"/>");
 			writer.println("		</filesystem>");
-			writer.println("		<filesystem name=\"local\">");
+			// libraries are republished with the same revision (publishJar overwrites):
+			// the cached copies must be checked against the local repository
+			writer.println("		<filesystem name=\"local\" checkmodified=\"true\" changingPattern=\".*\">");
 			writer.println("			<ivy pattern=\"${ivy.local.default.root}/${ivy.local.default.ivy.pattern}\"/>");
 			writer.println(
 					"			<artifact pattern=\"${ivy.local.default.root}/${ivy.local.default.artifact.pattern}\"/>");
@@ -133,13 +345,16 @@ public class DependencySolver  {
 			writer.println("			<resolver ref=\"shared\"/>");
 			writer.println("			<resolver ref=\"public\"/>");
 			writer.println("		</chain>");
-			writer.println("		<chain name=\"default\" returnFirst=\"true\" checkmodified=\"true\">");
+			writer.println("		<chain name=\"default\" returnFirst=\"true\" checkmodified=\""
+					+ checkModified + "\">");
 			writer.println("			<resolver ref=\"local\"/>");
 			writer.println("			<resolver ref=\"main\"/>");
 			writer.println("		</chain>");
 			writer.println("	</resolvers>");
 			writer.println("</ivysettings>");
 			writer.close();
+			ivySettingsXml = xml.toString();
+			Files.write(ivySettingsXmlFile.toPath(), ivySettingsXml.getBytes(StandardCharsets.UTF_8));
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
@@ -148,13 +363,29 @@ public class DependencySolver  {
 	/**
 	 * this does the hard work. cf.
 	 * {@link https://cwiki.apache.org/confluence/display/IVY/Programmatic+use+of+Ivy}
+	 * 
+	 * @param jarPaths the list where to put the jars found
+	 * @return true if all dependencies were resolved and retrieved
 	 */
 	@SuppressWarnings("unchecked")
-	private void resolveDependencies() {
-		Ivy ivy = Ivy.newInstance();
+	private boolean resolveDependencies(Collection<String> jarPaths) {
+		boolean ok = false;
 		try {
-			ivy.configure(ivySettingsXmlFile);
-			ResolveReport resolveReport = ivy.resolve(dependencyFile);
+			Ivy ivy = configuredIvy();
+			ResolveReport resolveReport;
+			ArtifactDownloadReport[] downloads = null;
+			ResolveOptions resolveOptions = new ResolveOptions();
+			resolveOptions.setRefresh(settingsProfile == SettingsProfile.FRESH);
+			// with parallel downloads, only resolve the dependency graph here
+			resolveOptions.setDownload(downloadThreads <= 1);
+			resolveReport = session.resolveAll(List.of(dependencyFile), resolveOptions).get(0);
+			if (downloadThreads > 1)
+				try (PhaseTimer.Phase phase = PhaseTimer.start("download")) {
+					downloads = downloadArtifacts(ivy, resolveReport.getArtifacts());
+					phase.addEntries(downloads.length);
+					for (ArtifactDownloadReport adr : downloads)
+						phase.addBytes(Math.max(0, adr.getSize()));
+				}
 			if (resolveReport.hasError()) {
 				List<String> problems = resolveReport.getAllProblemMessages();
 				if (problems != null && !problems.isEmpty()) {
@@ -169,21 +400,242 @@ public class DependencySolver  {
 			} else {
 				log.fine("Dependencies in file " + dependencyFile + " were successfully resolved");
 			}
-			ModuleDescriptor md = resolveReport.getModuleDescriptor();
-			ModuleRevisionId mRID = md.getModuleRevisionId();
-			RetrieveOptions retrieveOptions = new RetrieveOptions();
-			// This should be a tmp dir
-			File destFolder = new File(destPath);
-			String pattern = destFolder + "/[organization]/[module]/[type]/[artifact]-[revision].[ext]";
-			retrieveOptions.setDestIvyPattern(pattern);
-			retrieveOptions.setLog(LogOptions.LOG_QUIET); // use LOG_DEFAULT to see messages
-			int packagesRetrieved;
-			packagesRetrieved = ivy.retrieve(mRID, pattern, retrieveOptions);
-			log.fine("Retrieved " + packagesRetrieved + " dependencies");
+			if (retrieveMode == RetrieveMode.COPY && downloads == null) {
+				ModuleDescriptor md = resolveReport.getModuleDescriptor();
+				ModuleRevisionId mRID = md.getModuleRevisionId();
+				RetrieveOptions retrieveOptions = new RetrieveOptions();
+				// This should be a tmp dir
+				File destFolder = new File(libPath);
+				// links left by a previous run in LINK mode must not be written through
+				if (destFolder.exists())
+					try (Stream<Path> files = Files.walk(destFolder.toPath())) {
+						for (Path f : (Iterable<Path>) files.filter(Files::isSymbolicLink)::iterator)
+							Files.delete(f);
+					}
+				String pattern = destFolder + "/[organization]/[module]/[type]/[artifact]-[revision].[ext]";
+				retrieveOptions.setDestIvyPattern(pattern);
+				retrieveOptions.setLog(LogOptions.LOG_QUIET); // use LOG_DEFAULT to see messages
+				// only update what changed since the previous retrieval
+				retrieveOptions.setSync(cached);
+				int packagesRetrieved;
+				try (PhaseTimer.Phase phase = PhaseTimer.start("retrieve")) {
+					packagesRetrieved = ivy.retrieve(mRID, pattern, retrieveOptions);
+					phase.addEntries(packagesRetrieved);
+				}
+				log.fine("Retrieved " + packagesRetrieved + " dependencies");
+				// the retrieved jars, in the order of the resolution report, as in the
+				// other modes
+				for (ArtifactDownloadReport adr : resolveReport.getAllArtifactsReports()) {
+					File file = new File(IvyPatternHelper.substitute(pattern, adr.getArtifact()));
+					if (file.getName().endsWith(".jar") && file.exists())
+						jarPaths.add(file.getPath());
+				}
+				ok = !resolveReport.hasError();
+			} else if (downloads != null)
+				ok = artifactFiles(downloads, jarPaths) && !resolveReport.hasError();
+			else
+				ok = artifactFiles(resolveReport.getAllArtifactsReports(), jarPaths) && !resolveReport.hasError();
+			ArtifactDownloadReport[] reports = downloads != null ? downloads : resolveReport.getAllArtifactsReports();
+			if (lockMode == LockMode.UPDATE && ok) {
+				DependencyLock.of(reports).save(lockFile);
+				log.info("Lock file " + lockFile + " updated");
+			} else if (lockMode == LockMode.STRICT)
+				for (String problem : lock.verify(reports)) {
+					log.warning(problem);
+					lockProblems.add(problem);
+					ok = false;
+				}
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		return ok;
+	}
+
+	/**
+	 * resolves the 3Worlds libraries of the local repository with a
+	 * {@link LocalResolver}, and only the other dependencies with ivy. Everything
+	 * is resolved with ivy if the local resolver cannot do it.
+	 * 
+	 * @param jarPaths the list where to put the jars found
+	 * @return true if all dependencies were resolved and retrieved
+	 */
+	private boolean resolveLocally(Collection<String> jarPaths) {
+		LocalResolver.Resolution resolution = null;
+		try (PhaseTimer.Phase phase = PhaseTimer.start("local resolve")) {
+			resolution = new LocalResolver(localRepository).resolve(dependencyFile);
+			if (resolution != null)
+				phase.addEntries(resolution.modules().size());
+		} catch (IOException e) {
+			log.warning(e.getMessage());
+		}
+		if (resolution == null)
+			return resolveDependencies(jarPaths);
+		boolean ok = true;
+		File ivyFile = dependencyFile;
+		try {
+			if (!resolution.isLocal()) {
+				dependencyFile = resolution.writeIvyFile(new File(destPath + File.separator + "ivy-external.xml"));
+				ok = resolveDependencies(jarPaths);
+			}
+			try (PhaseTimer.Phase phase = PhaseTimer.start("retrieve")) {
+				File destFolder = new File(libPath);
+				// nothing was retrieved by ivy: clear what a previous run left
+				if (resolution.isLocal() && retrieveMode != RetrieveMode.DIRECT && destFolder.exists())
+					FileUtilities.deleteFileTree(destFolder);
+				// the order of a resolution report of ivy, whatever the retrieve mode: the
+				// jars of the external modules, in the order of their own report, where the
+				// first of them would be
+				List<String> externalJars = new ArrayList<>(jarPaths);
+				jarPaths.clear();
+				Map<String, LocalResolver.Module> local = new HashMap<>();
+				for (LocalResolver.Module m : resolution.modules())
+					local.put(m.getOrg() + "#" + m.getName(), m);
+				for (String key : resolution.order()) {
+					LocalResolver.Module m = local.get(key);
+					if (m == null) {
+						jarPaths.addAll(externalJars);
+						externalJars.clear();
+						continue;
+					}
+					for (File jar : m.getJars()) {
+						phase.addBytes(jar.length());
+						if (retrieveMode == RetrieveMode.DIRECT)
+							jarPaths.add(jar.getPath());
+						else {
+							// as ivy would retrieve it
+							String name = jar.getName();
+							Path dest = destFolder.toPath().resolve(m.getOrg()).resolve(m.getName())
+									.resolve(jar.getParentFile().getName().replaceAll("s$", ""))
+									.resolve(name.substring(0, name.length() - 4) + "-" + m.getRevision() + ".jar");
+							if (retrieveMode == RetrieveMode.LINK)
+								jarPaths.add(link(jar.toPath(), dest).toString());
+							else {
+								Files.createDirectories(dest.getParent());
+								jarPaths.add(Files.copy(jar.toPath(), dest, StandardCopyOption.REPLACE_EXISTING)
+										.toString());
+							}
+						}
+					}
+				}
+				jarPaths.addAll(externalJars);
+				phase.addEntries(jarPaths.size());
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			ok = false;
+		} finally {
+			dependencyFile = ivyFile;
+		}
+		return ok;
+	}
+
+	/**
+	 * @return an ivy instance configured with the current settings - the one of the
+	 *         previous resolution if the settings did not change
+	 */
+	private Ivy configuredIvy() throws ParseException, IOException {
+		if (userSettingsFile != null)
+			return session.ivy(userSettingsFile);
+		return session.ivy(ivySettingsXml);
+	}
+
+	/**
+	 * downloads artifacts concurrently, using at most {@code downloadThreads}
+	 * threads. Checksums are verified by ivy as part of each download.
+	 * 
+	 * @param ivy       the configured ivy instance
+	 * @param artifacts the artifacts to download
+	 * @return the download reports, in the same order as artifacts
+	 */
+	private ArtifactDownloadReport[] downloadArtifacts(Ivy ivy, List<Artifact> artifacts) throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(downloadThreads, artifacts.size())));
+		try {
+			DownloadOptions options = new DownloadOptions();
+			List<Future<ArtifactDownloadReport>> futures = new ArrayList<>();
+			for (Artifact artifact : artifacts)
+				futures.add(pool.submit(() -> {
+					// ivy keeps its state in thread-local contexts
+					ivy.pushContext();
+					try {
+						return ivy.getResolveEngine().download(artifact, options);
+					} finally {
+						ivy.popContext();
+					}
+				}));
+			ArtifactDownloadReport[] reports = new ArtifactDownloadReport[futures.size()];
+			for (int i = 0; i < reports.length; i++)
+				reports[i] = futures.get(i).get();
+			return reports;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * gets the jar paths directly from artifact download reports, ie in the ivy
+	 * cache. In LINK mode, replaces them by links in {@code destPath}. In COPY
+	 * mode, replaces them by copies in {@code destPath}.
+	 * 
+	 * @param reports the artifact download reports
+	 * @param list    the list of jars found
+	 * @return false if some artifacts could not be downloaded
+	 */
+	private boolean artifactFiles(ArtifactDownloadReport[] reports, Collection<String> list) throws IOException {
+		try (PhaseTimer.Phase phase = PhaseTimer.start("retrieve")) {
+			boolean ok = true;
+			File destFolder = new File(libPath);
+			if (retrieveMode != RetrieveMode.DIRECT && destFolder.exists())
+				FileUtilities.deleteFileTree(destFolder);
+			for (ArtifactDownloadReport adr : reports) {
+				if (adr.getDownloadStatus() == DownloadStatus.FAILED) {
+					log.warning("Failed to download " + adr.getArtifact() + ": " + adr.getDownloadDetails());
+					ok = false;
+					continue;
+				}
+				File file = adr.getLocalFile();
+				if (file == null || !file.getName().endsWith(".jar"))
+					continue;
+				phase.addBytes(file.length());
+				if (retrieveMode == RetrieveMode.DIRECT)
+					list.add(file.getPath());
+				else {
+					Artifact a = adr.getArtifact();
+					ModuleRevisionId mrid = a.getModuleRevisionId();
+					String classifier = a.getExtraAttribute("classifier");
+					Path dest = destFolder.toPath().resolve(mrid.getOrganisation()).resolve(mrid.getName())
+							.resolve(a.getType()).resolve(a.getName() + "-" + mrid.getRevision()
+									+ (classifier == null ? "" : "-" + classifier) + "." + a.getExt());
+					if (retrieveMode == RetrieveMode.LINK)
+						list.add(link(file.toPath(), dest).toString());
+					else {
+						Files.createDirectories(dest.getParent());
+						list.add(Files.copy(file.toPath(), dest).toString());
+					}
+				}
+			}
+			phase.addEntries(list.size());
+			return ok;
+		}
+	}
+
+	// links target to link: a symbolic link if possible, else a hard link, else a copy
+	private static Path link(Path target, Path link) throws IOException {
+		Files.createDirectories(link.getParent());
+		try {
+			return Files.createSymbolicLink(link, target.toAbsolutePath());
+		} catch (UnsupportedOperationException | IOException e) {
+			try {
+				return Files.createLink(link, target);
+			} catch (UnsupportedOperationException | IOException e2) {
+				return Files.copy(target, link);
+			}
+		}
 	}
 
 	/**
@@ -192,25 +644,127 @@ public class DependencySolver  {
 	 * @param dir  the directory to search for
 	 * @param list the list of jars found
 	 */
-	private void recurseDir(File dir, Collection<String> list) {
+	static void recurseDir(File dir, Collection<String> list) {
 		if (dir.isDirectory()) {
 			File[] subs = dir.listFiles();
+			// listing order depends on the file system
+			Arrays.sort(subs, Comparator.comparing(File::getName));
 			for (File sub : subs)
 				recurseDir(sub, list);
 		} else if (dir.getName().endsWith(".jar"))
 			list.add(dir.getPath());
 	}
 
+	/**
+	 * computes the key of the resolution cache. Since the ivy file may use dynamic
+	 * revisions, the content of the local repository (where newly published
+	 * 3Worlds libraries appear) is part of the key.
+	 * 
+	 * @return a SHA-256 hash of everything the resolution depends on
+	 */
+	private String resolutionKey() throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(Files.readAllBytes(dependencyFile.toPath()));
+			digest.update(Files.readAllBytes(ivySettingsXmlFile.toPath()));
+			digest.update(retrieveMode.name().getBytes());
+			List<String> stamps = new ArrayList<>();
+			if (localRepository.exists())
+				try (Stream<Path> files = Files.walk(localRepository.toPath())) {
+					files.filter(Files::isRegularFile).forEach(
+							f -> stamps.add(f + ":" + f.toFile().length() + ":" + f.toFile().lastModified()));
+				}
+			Collections.sort(stamps);
+			for (String stamp : stamps)
+				digest.update(stamp.getBytes());
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	// returns the jars of the previous resolution if it had the same key, null otherwise
+	private Collection<String> cachedJars(String key) {
+		File cacheFile = new File(destPath + File.separator + cacheFileName);
+		if (!cacheFile.exists())
+			return null;
+		Collection<String> jarPaths = new LinkedList<>();
+		try (BufferedReader fr = new BufferedReader(new FileReader(cacheFile))) {
+			String line = fr.readLine();
+			if (line == null || !line.equals("KEY=" + key))
+				return null;
+			line = fr.readLine();
+			while (line != null) {
+				if (!new File(line).exists())
+					return null;
+				jarPaths.add(line);
+				line = fr.readLine();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		return jarPaths;
+	}
+
+	private void saveCache(String key, Collection<String> jarPaths) {
+		File cacheFile = new File(destPath + File.separator + cacheFileName);
+		try (BufferedWriter fw = new BufferedWriter(new FileWriter(cacheFile))) {
+			fw.write("KEY=" + key);
+			fw.newLine();
+			for (String jar : jarPaths) {
+				fw.write(jar);
+				fw.newLine();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * 
 	 * @return a collection of all jar pathnames retrieved by the ivy dependency
-	 *         solver
+	 *         solver - empty if the resolution does not match the lock file in
+	 *         strict mode, cf. {@link #getLockProblems()}
 	 */
 	public Collection<String> getJars() {
-		File dir = new File(destPath);
-		resolveDependencies();
+		lockProblems.clear();
+		if (lockMode == LockMode.STRICT)
+			try {
+				lock = DependencyLock.load(lockFile);
+				dependencyFile = lock.writeIvyFile(new File(destPath + File.separator + "ivy-locked.xml"));
+			} catch (IOException e) {
+				log.severe("Cannot resolve from lock file " + lockFile + ": " + e.getMessage());
+				lockProblems.add("Cannot resolve from lock file " + lockFile + ": " + e.getMessage());
+				return new LinkedList<>();
+			}
+		buildIvySettingsFile();
+		String key = null;
+		// updating the lock file or refreshing requires a real resolution, and the
+		// checksums of the lock file are verified on every resolution
+		if (cached && lockMode == LockMode.NONE && settingsProfile != SettingsProfile.FRESH)
+			try (PhaseTimer.Phase phase = PhaseTimer.start("resolution cache")) {
+				key = resolutionKey();
+				Collection<String> jarPaths = cachedJars(key);
+				if (jarPaths != null) {
+					phase.addEntries(jarPaths.size());
+					log.fine("Dependencies of " + dependencyFile + " unchanged - reusing previous resolution");
+					return jarPaths;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		Collection<String> jarPaths = new LinkedList<>();
-		recurseDir(dir, jarPaths);
+		boolean ok = localFastPath && userSettingsFile == null && lockMode == LockMode.NONE
+				? resolveLocally(jarPaths)
+				: resolveDependencies(jarPaths);
+		// nothing that differs from the lock file is packed
+		if (!lockProblems.isEmpty())
+			return new LinkedList<>();
+		if (key != null && ok)
+			saveCache(key, jarPaths);
 		return jarPaths;
 	}
 
@@ -0,0 +1,215 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The zip file distributing the 3Worlds jars.
+ * 
+ * Files are streamed with large buffers. Already compressed members (jars,
+ * cf. {@link CompressionPolicy.Category#COMPRESSED}) are stored: their data is
+ * copied to the zip without going through the JVM heap. The other members (e.g.
+ * a class data sharing archive) are deflated by chunks on several threads, as
+ * pigz does: every chunk but the last ends with a sync flush, so that the
+ * compressed chunks concatenate into a single deflate stream, written as it
+ * comes (cf. {@link JarWriter#beginEntry(String, int, int)}).
+ *
+ */
+public class DistributionZip {
+
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	private final File zipFile;
+	private final int threads;
+	// member files, by entry name
+	private final Map<String, File> members = new LinkedHashMap<>();
+	// the date of all members, -1 to use the file dates
+	private int fixedTime = -1;
+
+	/**
+	 * @param zipFile the zip file to write
+	 * @param threads the number of compression threads
+	 */
+	public DistributionZip(File zipFile, int threads) {
+		super();
+		this.zipFile = zipFile;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * @param dosTime the date of all members, cf. {@link ZipRecord#dosTime(long)}
+	 *                - e.g. for a reproducible zip file
+	 */
+	public void setDosTime(int dosTime) {
+		this.fixedTime = dosTime;
+	}
+
+	/**
+	 * @param file      a file to distribute
+	 * @param entryName its path in the zip file
+	 */
+	public void add(File file, String entryName) {
+		members.put(entryName, file);
+	}
+
+	/**
+	 * writes the zip file. It is first written to a temporary file, so that no
+	 * incomplete zip file is left behind on error.
+	 * 
+	 * @throws IOException
+	 */
+	public void write() throws IOException {
+		File tmpFile = new File(zipFile.getPath() + ".part");
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "zip-packer");
+			t.setDaemon(true);
+			return t;
+		});
+		boolean done = false;
+		try {
+			try (PhaseTimer.Phase phase = PhaseTimer.start("zip"); JarWriter out = new JarWriter(tmpFile)) {
+				for (Map.Entry<String, File> m : members.entrySet()) {
+					File file = m.getValue();
+					int dosTime = fixedTime < 0 ? ZipRecord.dosTime(file.lastModified()) : fixedTime;
+					try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+						if (in.size() == 0
+								|| CompressionPolicy.category(m.getKey()) == CompressionPolicy.Category.COMPRESSED)
+							out.transfer(in, 0L, new ZipRecord(m.getKey(), ZipRecord.STORED, 0, crc(in), in.size(),
+									in.size(), dosTime, 0L));
+						else
+							deflate(pool, in, out, m.getKey(), dosTime);
+					}
+					phase.addEntries(1).addBytes(file.length());
+				}
+			}
+			Files.move(tmpFile.toPath(), zipFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			done = true;
+		} finally {
+			pool.shutdownNow();
+			// no incomplete zip file is left behind
+			if (!done)
+				tmpFile.delete();
+		}
+	}
+
+	private static long crc(FileChannel in) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		long position = 0L;
+		int n;
+		while ((n = in.read(buffer, position)) > 0) {
+			buffer.flip();
+			crc.update(buffer);
+			buffer.clear();
+			position += n;
+		}
+		return crc.getValue();
+	}
+
+	// reads the file by chunks, compressing them in parallel while reading on:
+	// the compressed chunks are written as soon as they are next in order, and at
+	// most a few chunks per thread are waiting, to bound memory use
+	private void deflate(ExecutorService pool, FileChannel in, JarWriter out, String name, int dosTime)
+			throws IOException {
+		CRC32 crc = new CRC32();
+		long size = in.size();
+		Deque<Future<byte[]>> chunks = new ArrayDeque<>();
+		out.beginEntry(name, ZipRecord.DEFLATED, dosTime);
+		for (long position = 0L; position < size; position += CHUNK_SIZE) {
+			byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, size - position)];
+			ByteBuffer buffer = ByteBuffer.wrap(chunk);
+			while (buffer.hasRemaining())
+				if (in.read(buffer, position + buffer.position()) < 0)
+					throw new IOException("Unexpected end of file " + name);
+			crc.update(chunk);
+			boolean last = position + chunk.length >= size;
+			chunks.addLast(pool.submit(() -> deflateChunk(chunk, last)));
+			if (chunks.size() > 2 * threads)
+				out.writeData(ByteBuffer.wrap(get(chunks.removeFirst())));
+		}
+		while (!chunks.isEmpty())
+			out.writeData(ByteBuffer.wrap(get(chunks.removeFirst())));
+		out.endEntry(crc.getValue(), size);
+	}
+
+	private static byte[] get(Future<byte[]> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private static byte[] deflateChunk(byte[] chunk, boolean last) {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(chunk);
+			if (last)
+				deflater.finish();
+			byte[] out = new byte[Math.max(64, chunk.length / 2)];
+			int length = 0;
+			while (true) {
+				if (length == out.length)
+					out = Arrays.copyOf(out, out.length * 2);
+				int n = deflater.deflate(out, length, out.length - length,
+						last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+				length += n;
+				// a sync flush is complete when the output buffer was not filled
+				if (last ? deflater.finished() : length < out.length)
+					break;
+			}
+			return Arrays.copyOf(out, length);
+		} finally {
+			deflater.end();
+		}
+	}
+
+}
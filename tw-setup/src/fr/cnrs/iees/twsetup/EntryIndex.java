@@ -0,0 +1,164 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The index of the entries packed in a jar, keyed on entry name, with the CRC-32
+ * and size found in the central directory of the jar each entry comes from.
+ * When several input jars contain the same entry, only the first copy is
+ * packed: identical copies (same CRC-32 and size) are silently skipped,
+ * different ones are recorded as conflicts.
+ *
+ */
+public class EntryIndex {
+
+	/**
+	 * Where a packed entry comes from
+	 */
+	public static class Origin {
+		public final String source;
+		public final long crc;
+		public final long size;
+
+		public Origin(String source, long crc, long size) {
+			this.source = source;
+			this.crc = crc;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Two different entries with the same name
+	 */
+	public static class Conflict {
+		public final String name;
+		/** the entry which was packed */
+		public final Origin kept;
+		/** the entry which was skipped */
+		public final Origin skipped;
+
+		public Conflict(String name, Origin kept, Origin skipped) {
+			this.name = name;
+			this.kept = kept;
+			this.skipped = skipped;
+		}
+
+		public boolean isClass() {
+			return name.endsWith(".class");
+		}
+
+		@Override
+		public String toString() {
+			return name + " from " + kept.source + " (skipped from " + skipped.source + ")";
+		}
+	}
+
+	private final Map<String, Origin> entries = new HashMap<>();
+	private final List<Conflict> conflicts = new ArrayList<>();
+	private int duplicates = 0;
+
+	/**
+	 * records an entry, unless an entry with this name is already there
+	 * 
+	 * @param name   the entry name
+	 * @param source the jar it comes from
+	 * @param crc    its CRC-32
+	 * @param size   its uncompressed size
+	 * @return true if the entry must be packed, false if it is a duplicate
+	 */
+	public boolean add(String name, String source, long crc, long size) {
+		Origin other = entries.get(name);
+		if (other == null) {
+			entries.put(name, new Origin(source, crc, size));
+			return true;
+		}
+		if (other.crc == crc && other.size == size)
+			duplicates++;
+		// directories differ only by their name
+		else if (!name.endsWith("/"))
+			conflicts.add(new Conflict(name, other, new Origin(source, crc, size)));
+		return false;
+	}
+
+	public boolean contains(String name) {
+		return entries.containsKey(name);
+	}
+
+	public boolean containsAll(Collection<String> names) {
+		return entries.keySet().containsAll(names);
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of entries skipped because identical to a packed one
+	 */
+	public int identicalDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * @return the entries skipped because different from the packed one with
+	 *         the same name
+	 */
+	public List<Conflict> conflicts() {
+		return conflicts;
+	}
+
+	/**
+	 * @return the conflicts grouped by pair of libraries, with the number of
+	 *         classes and resources concerned and an example
+	 */
+	public String conflictReport() {
+		Map<String, int[]> counts = new TreeMap<>();
+		Map<String, String> examples = new HashMap<>();
+		for (Conflict c : conflicts) {
+			String key = new File(c.kept.source).getName() + " <> " + new File(c.skipped.source).getName();
+			counts.computeIfAbsent(key, k -> new int[2])[c.isClass() ? 0 : 1]++;
+			examples.putIfAbsent(key, c.name);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, int[]> e : counts.entrySet())
+			sb.append(e.getKey()).append(": ").append(e.getValue()[0]).append(" classes, ").append(e.getValue()[1])
+					.append(" resources (e.g. ").append(examples.get(e.getKey())).append(")\n");
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,178 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.apache.ivy.Ivy;
+import org.apache.ivy.core.cache.DefaultRepositoryCacheManager;
+import org.apache.ivy.core.cache.RepositoryCacheManager;
+import org.apache.ivy.core.report.ResolveReport;
+import org.apache.ivy.core.resolve.ResolveOptions;
+
+import fr.cnrs.iees.omhtk.utils.Logging;
+
+/**
+ * A long-lived ivy instance, for programs resolving dependencies more than once
+ * (watch mode, build orchestration...). Ivy is configured once, from settings
+ * held in memory, and configured again only if the settings change. Parsed
+ * module descriptors are kept in the memory cache of the repository cache
+ * manager between resolutions, and several modules can be resolved in one
+ * batch.
+ * 
+ * A session is shared by giving it to every {@link DependencySolver} that
+ * should use it, cf. {@link DependencySolver#setSession(IvySession)}.
+ *
+ */
+public class IvySession {
+
+	private static Logger log = Logging.getLogger(IvySession.class);
+
+	// parsed module descriptors kept in memory (ivy keeps 150 by default)
+	private static final int MEMORY_CACHE_SIZE = 1000;
+
+	private Ivy ivy = null;
+	// what the current ivy instance was configured from
+	private String settings = null;
+	private int configurations = 0;
+
+	/**
+	 * @param settingsXml the content of an ivy settings file
+	 * @return an ivy instance configured with these settings
+	 * @throws ParseException if the settings are invalid
+	 * @throws IOException
+	 */
+	public synchronized Ivy ivy(String settingsXml) throws ParseException, IOException {
+		if (ivy != null && settingsXml.equals(settings))
+			return ivy;
+		byte[] bytes = settingsXml.getBytes(StandardCharsets.UTF_8);
+		// no need to write the settings to a file to have them parsed
+		URL url = new URL(null, "ivysettings:generated", new URLStreamHandler() {
+			@Override
+			protected URLConnection openConnection(URL u) {
+				return new URLConnection(u) {
+					@Override
+					public void connect() {
+					}
+
+					@Override
+					public InputStream getInputStream() {
+						return new ByteArrayInputStream(bytes);
+					}
+				};
+			}
+		});
+		Ivy newIvy = Ivy.newInstance();
+		try (PhaseTimer.Phase phase = PhaseTimer.start("ivy configuration")) {
+			newIvy.configure(url);
+			phase.addEntries(newIvy.getSettings().getResolvers().size());
+		}
+		return keep(newIvy, settingsXml);
+	}
+
+	/**
+	 * @param settingsFile an ivy settings file - e.g. one with relative includes
+	 * @return an ivy instance configured with this file
+	 * @throws ParseException if the settings are invalid
+	 * @throws IOException
+	 */
+	public synchronized Ivy ivy(File settingsFile) throws ParseException, IOException {
+		String key = settingsFile.getAbsolutePath() + "\n"
+				+ new String(Files.readAllBytes(settingsFile.toPath()), StandardCharsets.UTF_8);
+		if (ivy != null && key.equals(settings))
+			return ivy;
+		Ivy newIvy = Ivy.newInstance();
+		try (PhaseTimer.Phase phase = PhaseTimer.start("ivy configuration")) {
+			newIvy.configure(settingsFile);
+			phase.addEntries(newIvy.getSettings().getResolvers().size());
+		}
+		return keep(newIvy, key);
+	}
+
+	private Ivy keep(Ivy newIvy, String key) {
+		RepositoryCacheManager cache = newIvy.getSettings().getDefaultRepositoryCacheManager();
+		if (cache instanceof DefaultRepositoryCacheManager)
+			((DefaultRepositoryCacheManager) cache).setMemorySize(MEMORY_CACHE_SIZE);
+		ivy = newIvy;
+		settings = key;
+		configurations++;
+		log.fine("Ivy configured (" + configurations + " configurations in this session)");
+		return ivy;
+	}
+
+	/**
+	 * @return the number of times ivy was configured in this session
+	 */
+	public int configurations() {
+		return configurations;
+	}
+
+	/**
+	 * Resolves several modules with the ivy instance of this session, in a single
+	 * ivy context
+	 * 
+	 * @param ivyFiles the ivy files of the modules
+	 * @param options  the resolve options, the same for all modules
+	 * @return the resolve reports, in the same order as the ivy files
+	 * @throws ParseException if an ivy file is invalid
+	 * @throws IOException
+	 * @throws IllegalStateException if ivy was not configured yet
+	 */
+	public synchronized List<ResolveReport> resolveAll(List<File> ivyFiles, ResolveOptions options)
+			throws ParseException, IOException {
+		if (ivy == null)
+			throw new IllegalStateException("Ivy session not configured");
+		List<ResolveReport> reports = new ArrayList<>();
+		ivy.pushContext();
+		try (PhaseTimer.Phase phase = PhaseTimer.start("resolve")) {
+			for (File ivyFile : ivyFiles) {
+				ResolveReport report = ivy.resolve(ivyFile.toURI().toURL(), options);
+				phase.addEntries(report.getArtifacts().size());
+				reports.add(report);
+			}
+		} finally {
+			ivy.popContext();
+		}
+		return reports;
+	}
+
+}
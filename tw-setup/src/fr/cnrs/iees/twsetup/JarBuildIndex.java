@@ -0,0 +1,266 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The record of which input jars went into a packed jar, and where their
+ * entries ended up in it. Saved next to the packed jar, it enables the next
+ * build to copy the entries of unchanged inputs from the previous jar instead
+ * of reading them again from the inputs.
+ * 
+ * Inputs are identified by a content fingerprint (SHA-256), so that a jar which
+ * moved to another path is still recognized. The fingerprint is only recomputed
+ * when the path, size or modification date of an input changed.
+ *
+ */
+public class JarBuildIndex {
+
+	/**
+	 * What is known about one input jar
+	 */
+	public static class Input {
+		public final String path;
+		public final long size;
+		public final long modified;
+		public final String fingerprint;
+		/** rank of the first entry of this input in the packed jar */
+		public final int first;
+		/** number of entries of this input written in the packed jar */
+		public final int count;
+		/** entries of this input skipped because already packed from another input */
+		public final List<String> skipped;
+
+		public Input(String path, long size, long modified, String fingerprint, int first, int count,
+				List<String> skipped) {
+			this.path = path;
+			this.size = size;
+			this.modified = modified;
+			this.fingerprint = fingerprint;
+			this.first = first;
+			this.count = count;
+			this.skipped = skipped;
+		}
+	}
+
+	private long jarSize = -1L;
+	private long jarModified = -1L;
+	private String options = "";
+	private final List<Input> inputs = new ArrayList<>();
+	private final Map<String, Input> byFingerprint = new HashMap<>();
+	private final Map<String, Input> byPath = new HashMap<>();
+	// the position in the packed jar of each entry, by rank in packing order -
+	// null if the entries are in packing order
+	private int[] layout = null;
+
+	public void addInput(Input input) {
+		inputs.add(input);
+		byFingerprint.putIfAbsent(input.fingerprint, input);
+		byPath.put(input.path, input);
+	}
+
+	/**
+	 * @param options the packing options (compression, timestamps...) the packed
+	 *                jar was built with
+	 */
+	public void setOptions(String options) {
+		this.options = options;
+	}
+
+	public String options() {
+		return options;
+	}
+
+	public List<Input> inputs() {
+		return inputs;
+	}
+
+	/**
+	 * @param rank the rank of an entry in packing order (cf. {@link Input#first})
+	 * @return its position in the packed jar
+	 */
+	public int position(int rank) {
+		return layout == null || rank >= layout.length ? rank : layout[rank];
+	}
+
+	/**
+	 * records that the entries of the packed jar were moved after packing, e.g. by
+	 * {@link StartupOrder#reorder(File, List)}
+	 * 
+	 * @param moved the previous position of each entry, by new position
+	 */
+	public void moved(int[] moved) {
+		int[] newPosition = new int[moved.length];
+		for (int i = 0; i < moved.length; i++)
+			newPosition[moved[i]] = i;
+		int[] l = new int[moved.length];
+		for (int rank = 0; rank < l.length; rank++)
+			l[rank] = newPosition[position(rank)];
+		layout = l;
+	}
+
+	/**
+	 * @param fingerprint a jar content fingerprint
+	 * @return the input with this fingerprint, or null if none
+	 */
+	public Input find(String fingerprint) {
+		return byFingerprint.get(fingerprint);
+	}
+
+	/**
+	 * @param jar the packed jar
+	 * @return true if the packed jar is still the one this index was saved with
+	 */
+	public boolean matches(File jar) {
+		return jar.exists() && jar.length() == jarSize && jar.lastModified() == jarModified;
+	}
+
+	/**
+	 * Computes the content fingerprint of a jar, reusing the one stored in this
+	 * index if the file looks unchanged.
+	 * 
+	 * @param jar the jar
+	 * @return the SHA-256 of the file content, as a hex string
+	 * @throws IOException
+	 */
+	public String fingerprint(File jar) throws IOException {
+		Input known = byPath.get(jar.getPath());
+		if (known != null && known.size == jar.length() && known.modified == jar.lastModified())
+			return known.fingerprint;
+		return sha256(jar);
+	}
+
+	public static String sha256(File file) throws IOException {
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				digest.update(buffer, 0, n);
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * @param indexFile the index file
+	 * @return the index saved in this file, or null if no valid index was found
+	 */
+	public static JarBuildIndex load(File indexFile) {
+		if (!indexFile.exists())
+			return null;
+		JarBuildIndex index = new JarBuildIndex();
+		try (BufferedReader fr = new BufferedReader(new FileReader(indexFile))) {
+			String line = fr.readLine();
+			while (line != null) {
+				if (line.startsWith("JAR=")) {
+					String[] s = line.substring(4).split(":");
+					index.jarSize = Long.parseLong(s[0]);
+					index.jarModified = Long.parseLong(s[1]);
+				} else if (line.startsWith("OPTIONS="))
+					index.options = line.substring(8);
+				else if (line.startsWith("LAYOUT=")) {
+					String[] s = line.substring(7).split(",");
+					index.layout = new int[s.length];
+					for (int i = 0; i < s.length; i++)
+						index.layout[i] = Integer.parseInt(s[i]);
+				}
+				else if (line.startsWith("\t"))
+					// skipped entry of the previous input
+					index.inputs.get(index.inputs.size() - 1).skipped.add(line.substring(1));
+				else if (!line.startsWith("//") && !line.isBlank()) {
+					String[] s = line.split("\t", 6);
+					index.addInput(new Input(s[5], Long.parseLong(s[3]), Long.parseLong(s[4]), s[0],
+							Integer.parseInt(s[1]), Integer.parseInt(s[2]), new ArrayList<>()));
+				}
+				line = fr.readLine();
+			}
+		} catch (Exception e) {
+			// a broken index only means a full rebuild
+			return null;
+		}
+		return index;
+	}
+
+	/**
+	 * saves this index, recording the current state of the packed jar
+	 * 
+	 * @param indexFile the index file
+	 * @param jar       the packed jar this index describes
+	 * @throws IOException
+	 */
+	public void save(File indexFile, File jar) throws IOException {
+		jarSize = jar.length();
+		jarModified = jar.lastModified();
+		try (BufferedWriter fw = new BufferedWriter(new FileWriter(indexFile))) {
+			fw.write("//GENERATED - DO NOT EDIT THIS FILE");
+			fw.newLine();
+			fw.write("JAR=" + jarSize + ":" + jarModified);
+			fw.newLine();
+			fw.write("OPTIONS=" + options);
+			fw.newLine();
+			if (layout != null) {
+				StringBuilder sb = new StringBuilder("LAYOUT=");
+				for (int i = 0; i < layout.length; i++)
+					sb.append(i > 0 ? "," : "").append(layout[i]);
+				fw.write(sb.toString());
+				fw.newLine();
+			}
+			for (Input i : inputs) {
+				fw.write(i.fingerprint + "\t" + i.first + "\t" + i.count + "\t" + i.size + "\t" + i.modified + "\t"
+						+ i.path);
+				fw.newLine();
+				for (String name : i.skipped) {
+					fw.write("\t" + name);
+					fw.newLine();
+				}
+			}
+		}
+	}
+
+}
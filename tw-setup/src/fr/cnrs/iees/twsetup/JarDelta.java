@@ -0,0 +1,279 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Entry by entry differences between two versions of a jar, so that users can
+ * update their tw-dep.jar by downloading a patch instead of the whole jar.
+ * 
+ * A patch is itself a zip file. Its first entry is a text description of the
+ * new jar: the SHA-256 of both jars, then one line per entry of the new jar, in
+ * order: {@code = name} for an entry copied from the old jar, {@code + name}
+ * for an entry taken from the patch. The patch then contains the added and
+ * changed entries, in the same order, with their compressed data copied as is.
+ * Removed entries are simply not listed.
+ * 
+ * Applying a patch writes the listed entries with a {@link JarWriter}, without
+ * decompressing anything, and checks that the result has the expected SHA-256.
+ * This rebuilds the new jar exactly if it was itself written by a
+ * {@link JarWriter} (i.e. by tw-setup): this is checked when the patch is made.
+ * 
+ * Usage: {@code JarDelta diff old.jar new.jar patch} or
+ * {@code JarDelta apply old.jar patch new.jar}.
+ *
+ */
+public class JarDelta {
+
+	private static final String HEADER = "//GENERATED - DO NOT EDIT THIS FILE";
+	private static final String DESCRIPTION = "JARDELTA";
+	// the compared entries are read in chunks of this size
+	private static final int COMPARE_BUFFER_SIZE = 1 << 16;
+
+	private int added = 0;
+	private int changed = 0;
+	private int removed = 0;
+	private int unchanged = 0;
+
+	private JarDelta() {
+	}
+
+	public int added() {
+		return added;
+	}
+
+	public int changed() {
+		return changed;
+	}
+
+	public int removed() {
+		return removed;
+	}
+
+	public int unchanged() {
+		return unchanged;
+	}
+
+	@Override
+	public String toString() {
+		return added + " added, " + changed + " changed, " + removed + " removed, " + unchanged + " unchanged entries";
+	}
+
+	// true if both entries have the same header and the same compressed data, read
+	// chunk by chunk into the two buffers
+	private static boolean sameEntry(FileChannel oldJar, ZipRecord o, FileChannel newJar, ZipRecord n, ByteBuffer a,
+			ByteBuffer b) throws IOException {
+		if (o.getMethod() != n.getMethod() || o.getCrc() != n.getCrc() || o.getSize() != n.getSize()
+				|| o.getCompressedSize() != n.getCompressedSize() || o.getDosTime() != n.getDosTime())
+			return false;
+		long oldOffset = ZipDirectory.dataOffset(oldJar, o);
+		long newOffset = ZipDirectory.dataOffset(newJar, n);
+		for (long done = 0; done < n.getCompressedSize(); done += a.limit()) {
+			int length = (int) Math.min(a.capacity(), n.getCompressedSize() - done);
+			readFully(oldJar, oldOffset + done, a, length);
+			readFully(newJar, newOffset + done, b, length);
+			if (!a.equals(b))
+				return false;
+		}
+		return true;
+	}
+
+	private static void readFully(FileChannel ch, long position, ByteBuffer buffer, int length) throws IOException {
+		buffer.clear().limit(length);
+		while (buffer.hasRemaining())
+			if (ch.read(buffer, position + buffer.position()) < 0)
+				throw new ZipException("Truncated entry data");
+		buffer.flip();
+	}
+
+	/**
+	 * Writes the patch turning a jar into another
+	 * 
+	 * @param oldJar the jar users have
+	 * @param newJar the jar they need
+	 * @param patch  the patch file to write
+	 * @return the entry counts of the patch
+	 * @throws IOException if a jar cannot be read, or if the new jar cannot be
+	 *                     rebuilt exactly from the patch
+	 */
+	public static JarDelta diff(File oldJar, File newJar, File patch) throws IOException {
+		JarDelta delta = new JarDelta();
+		StringBuilder description = new StringBuilder();
+		description.append(HEADER).append('\n');
+		description.append("OLD=").append(JarBuildIndex.sha256(oldJar)).append('\n');
+		description.append("NEW=").append(JarBuildIndex.sha256(newJar)).append('\n');
+		File tmpFile = new File(patch.getPath() + ".part");
+		try (FileChannel oldIn = FileChannel.open(oldJar.toPath(), StandardOpenOption.READ);
+				FileChannel newIn = FileChannel.open(newJar.toPath(), StandardOpenOption.READ)) {
+			Map<String, ZipRecord> oldRecords = new HashMap<>();
+			for (ZipRecord r : ZipDirectory.read(oldIn).records())
+				oldRecords.putIfAbsent(r.getName(), r);
+			List<ZipRecord> newRecords = ZipDirectory.read(newIn).records();
+			boolean[] copied = new boolean[newRecords.size()];
+			ByteBuffer a = ByteBuffer.allocate(COMPARE_BUFFER_SIZE);
+			ByteBuffer b = ByteBuffer.allocate(COMPARE_BUFFER_SIZE);
+			int i = 0;
+			for (ZipRecord n : newRecords) {
+				ZipRecord o = oldRecords.remove(n.getName());
+				copied[i++] = o != null && sameEntry(oldIn, o, newIn, n, a, b);
+				description.append(copied[i - 1] ? "= " : "+ ").append(n.getName()).append('\n');
+				if (copied[i - 1])
+					delta.unchanged++;
+				else if (o != null)
+					delta.changed++;
+				else
+					delta.added++;
+			}
+			delta.removed = oldRecords.size();
+			try (JarWriter out = new JarWriter(tmpFile)) {
+				out.write(PackedEntry.deflate(DESCRIPTION, description.toString().getBytes(StandardCharsets.UTF_8),
+						ZipRecord.dosTime(System.currentTimeMillis()), Deflater.BEST_COMPRESSION));
+				i = 0;
+				for (ZipRecord n : newRecords)
+					if (!copied[i++])
+						out.transfer(newIn, ZipDirectory.dataOffset(newIn, n), n);
+			}
+		}
+		// make sure that the patch works before anyone downloads it
+		File check = new File(patch.getPath() + ".check");
+		try {
+			apply(oldJar, tmpFile, check);
+		} catch (IOException e) {
+			tmpFile.delete();
+			throw new IOException(newJar + " cannot be rebuilt from a patch: " + e.getMessage(), e);
+		} finally {
+			check.delete();
+		}
+		Files.move(tmpFile.toPath(), patch.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return delta;
+	}
+
+	/**
+	 * Rebuilds a jar from its previous version and a patch
+	 * 
+	 * @param oldJar the previous version of the jar
+	 * @param patch  the patch, cf. {@link #diff(File, File, File)}
+	 * @param newJar the jar to write (may be the same file as oldJar)
+	 * @return the entry counts of the patch
+	 * @throws IOException if the patch does not apply to this jar or if the result
+	 *                     is not the expected jar - newJar is then left as it was
+	 */
+	public static JarDelta apply(File oldJar, File patch, File newJar) throws IOException {
+		JarDelta delta = new JarDelta();
+		String oldHash = null;
+		String newHash = null;
+		File tmpFile = new File(newJar.getPath() + ".part");
+		try (ZipFile patchZip = new ZipFile(patch);
+				BufferedReader description = new BufferedReader(new InputStreamReader(
+						patchZip.getInputStream(patchZip.getEntry(DESCRIPTION)), StandardCharsets.UTF_8));
+				FileChannel oldIn = FileChannel.open(oldJar.toPath(), StandardOpenOption.READ);
+				FileChannel patchIn = FileChannel.open(patch.toPath(), StandardOpenOption.READ);
+				JarWriter out = new JarWriter(tmpFile)) {
+			Map<String, ZipRecord> oldRecords = new HashMap<>();
+			for (ZipRecord r : ZipDirectory.read(oldIn).records())
+				oldRecords.putIfAbsent(r.getName(), r);
+			List<ZipRecord> patchRecords = ZipDirectory.read(patchIn).records();
+			// the description is the first entry
+			int next = 1;
+			String line = description.readLine();
+			while (line != null) {
+				if (line.startsWith("OLD=")) {
+					oldHash = line.substring(4);
+					if (!oldHash.equals(JarBuildIndex.sha256(oldJar)))
+						throw new ZipException("Patch " + patch + " does not apply to " + oldJar);
+				} else if (line.startsWith("NEW="))
+					newHash = line.substring(4);
+				else if (line.startsWith("= ")) {
+					ZipRecord r = oldRecords.remove(line.substring(2));
+					if (r == null)
+						throw new ZipException("Entry " + line.substring(2) + " missing from " + oldJar);
+					out.transfer(oldIn, ZipDirectory.dataOffset(oldIn, r), r);
+					delta.unchanged++;
+				} else if (line.startsWith("+ ")) {
+					if (next >= patchRecords.size())
+						throw new ZipException("Entry " + line.substring(2) + " missing from " + patch);
+					ZipRecord r = patchRecords.get(next++);
+					if (oldRecords.remove(r.getName()) != null)
+						delta.changed++;
+					else
+						delta.added++;
+					out.transfer(patchIn, ZipDirectory.dataOffset(patchIn, r), r);
+				}
+				line = description.readLine();
+			}
+			delta.removed = oldRecords.size();
+		} catch (IOException e) {
+			tmpFile.delete();
+			throw e;
+		}
+		if (oldHash == null || newHash == null || !newHash.equals(JarBuildIndex.sha256(tmpFile))) {
+			tmpFile.delete();
+			throw new ZipException("Patching " + oldJar + " with " + patch + " did not give the expected jar");
+		}
+		Files.move(tmpFile.toPath(), newJar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		return delta;
+	}
+
+	public static void main(String[] args) {
+		if (args.length != 4 || !(args[0].equals("diff") || args[0].equals("apply"))) {
+			System.out.println("Usage: JarDelta diff old.jar new.jar patch | JarDelta apply old.jar patch new.jar");
+			System.exit(1);
+		}
+		try {
+			if (args[0].equals("diff")) {
+				JarDelta delta = diff(new File(args[1]), new File(args[2]), new File(args[3]));
+				System.out.println(args[3] + ": " + delta + " (" + new File(args[3]).length() + " bytes)");
+			} else {
+				JarDelta delta = apply(new File(args[1]), new File(args[2]), new File(args[3]));
+				System.out.println(args[3] + " rebuilt: " + delta);
+			}
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+
+}
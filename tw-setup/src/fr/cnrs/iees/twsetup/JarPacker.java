@@ -0,0 +1,602 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipFile;
+
+import fr.cnrs.iees.omhtk.utils.Logging;
+
+/**
+ * Merges a list of jars into a single (fat) jar. When an entry is found in more
+ * than one jar, the first one wins: later copies are skipped without being
+ * read, and those which differ from the first one (by CRC-32 or size) are
+ * reported as conflicts, cf. {@link EntryIndex}. Manifests, jar indexes and
+ * signatures of the input jars are dropped since they are meaningless in the
+ * merged jar.
+ * 
+ * In incremental mode, a {@link JarBuildIndex} is saved next to the jar. On the
+ * next build, the entries of the inputs that did not change are copied from
+ * the previous jar without being decompressed. This is only done if the
+ * entries an input lost to other inputs are still provided by them - otherwise
+ * the result would differ from a full rebuild.
+ * 
+ * The compressed data of input entries is copied as is, using the sizes and
+ * checksums found in the central directory of the input jars: merging jars then
+ * costs no compression at all. Entries are only decompressed and recompressed
+ * if they cannot be copied (e.g. unusual compression methods), if
+ * recompression is requested or if the {@link CompressionPolicy} asks for
+ * another compression for their kind of content. Compression runs on as many
+ * threads as there are cores, cf. {@link ParallelPacker}.
+ * 
+ * Other jars (cf. {@link Target}) can be written in the same pass, e.g.
+ * application jars with other main classes: input entries are read and
+ * compressed once, and copied to all the jars including them.
+ * 
+ * In reproducible mode, all entries get the same date (cf.
+ * {@link #reproducibleTime()}), so that the same inputs in the same order always
+ * give the same bytes, and the build key depends on the content of the inputs
+ * rather than on their paths and dates.
+ *
+ */
+public class JarPacker {
+
+	/**
+	 * A jar written in the same pass as the packed jar, with its own manifest. It
+	 * gets the entries of the packed jar accepted by its include filter.
+	 */
+	public static class Target {
+		private final File jarFile;
+		private final Manifest manifest;
+		private final Predicate<String> include;
+
+		/**
+		 * @param jarFile  the jar to write
+		 * @param manifest its manifest
+		 * @param include  which entries (by name) go into this jar
+		 */
+		public Target(File jarFile, Manifest manifest, Predicate<String> include) {
+			super();
+			this.jarFile = jarFile;
+			this.manifest = manifest;
+			this.include = include;
+		}
+
+		public File jarFile() {
+			return jarFile;
+		}
+	}
+
+	private static Logger log = Logging.getLogger(JarPacker.class);
+
+	private static final String META_INF = "META-INF/";
+
+	private final Manifest manifest;
+	private final List<String> jars;
+	private boolean incremental = false;
+	private int threads = ParallelPacker.defaultThreads();
+	private boolean recompress = false;
+	// stats of the last run
+	private int reusedJars = 0;
+	// the compression phase of the current pack()
+	private PhaseTimer.Phase compression = null;
+	// the entries of the last packed jar
+	private EntryIndex entries = null;
+	private TreeShaker treeShaker = null;
+	// the classes to pack when tree shaking, null otherwise
+	private Set<String> reachable = null;
+	private int removedClasses = 0;
+	private boolean skipUnchanged = false;
+	private boolean skipped = false;
+	private CompressionPolicy policy = new CompressionPolicy();
+	private CompressionPolicy.Stats stats = null;
+	private boolean reproducible = false;
+	// the date of all entries in reproducible mode, -1 otherwise
+	private int fixedTime = -1;
+	private final List<Target> targets = new ArrayList<>();
+	// the writers of the targets during pack()
+	private final List<ParallelPacker> targetWriters = new ArrayList<>();
+
+	public JarPacker(Manifest manifest, List<String> jars) {
+		super();
+		this.manifest = manifest;
+		this.jars = jars;
+	}
+
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * @param threads the number of compression threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @param recompress if true, input entries are always decompressed and
+	 *                   recompressed instead of being copied as is
+	 */
+	public void setRecompress(boolean recompress) {
+		this.recompress = recompress;
+	}
+
+	/**
+	 * @param target another jar to write with the same entries (or a subset of
+	 *               them) and another manifest. Its include filter is assumed not
+	 *               to change between builds.
+	 */
+	public void addTarget(Target target) {
+		targets.add(target);
+	}
+
+	/**
+	 * @param reproducible if true, entry dates are normalized so that the jar only
+	 *                     depends on the content of its inputs
+	 */
+	public void setReproducible(boolean reproducible) {
+		this.reproducible = reproducible;
+	}
+
+	/**
+	 * @return the date of all entries in reproducible mode: the
+	 *         SOURCE_DATE_EPOCH environment variable (in seconds) if set, as
+	 *         usual for reproducible builds, 1/1/2000 otherwise - in UTC, so that
+	 *         the time zone of the build does not matter
+	 */
+	public static int reproducibleTime() {
+		String epoch = System.getenv("SOURCE_DATE_EPOCH");
+		if (epoch != null)
+			try {
+				return ZipRecord.dosTime(Long.parseLong(epoch.trim()) * 1000L, ZoneOffset.UTC);
+			} catch (NumberFormatException e) {
+				log.warning("Invalid SOURCE_DATE_EPOCH: " + epoch);
+			}
+		return ZipRecord.dosTime(LocalDateTime.of(2000, 1, 1, 0, 0).toInstant(ZoneOffset.UTC).toEpochMilli(),
+				ZoneOffset.UTC);
+	}
+
+	/**
+	 * @param policy how entries are compressed depending on their content
+	 */
+	public void setCompressionPolicy(CompressionPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * @return the sizes and compression times per entry category of the last
+	 *         packed jar
+	 */
+	public CompressionPolicy.Stats compressionStats() {
+		return stats;
+	}
+
+	/**
+	 * @return the number of input jars copied from the previous build during the
+	 *         last call to {@link #pack(File)}
+	 */
+	public int reusedJars() {
+		return reusedJars;
+	}
+
+	/**
+	 * If true, the jar is not written again when its manifest and its inputs
+	 * (paths, sizes and modification dates, or names and content in reproducible
+	 * mode) are the same as for the previous build, as recorded in its key file
+	 * (cf. {@link #keyFile(File)}).
+	 * 
+	 * @param skipUnchanged
+	 */
+	public void setSkipUnchanged(boolean skipUnchanged) {
+		this.skipUnchanged = skipUnchanged;
+	}
+
+	/**
+	 * @return true if the last call to {@link #pack(File)} found the jar up to
+	 *         date and did not write it
+	 */
+	public boolean skipped() {
+		return skipped;
+	}
+
+	/**
+	 * When a tree shaker is set, the classes it does not find reachable are not
+	 * packed. Since what is reachable depends on all the inputs, incremental mode
+	 * is then ignored.
+	 * 
+	 * @param treeShaker the tree shaker, or null to pack all classes
+	 */
+	public void setTreeShaker(TreeShaker treeShaker) {
+		this.treeShaker = treeShaker;
+	}
+
+	/**
+	 * @return the number of class entries dropped by the tree shaker in the last
+	 *         packed jar
+	 */
+	public int removedClasses() {
+		return removedClasses;
+	}
+
+	/**
+	 * @return the index of the entries of the last packed jar, with the duplicate
+	 *         and conflicting entries found in the inputs
+	 */
+	public EntryIndex entries() {
+		return entries;
+	}
+
+	/**
+	 * @param jarFile a packed jar
+	 * @return the index file associated with this jar
+	 */
+	public static File indexFile(File jarFile) {
+		return new File(jarFile.getPath() + ".index");
+	}
+
+	/**
+	 * @param jarFile a packed jar
+	 * @return the file where the key of its inputs is saved
+	 */
+	public static File keyFile(File jarFile) {
+		return new File(jarFile.getPath() + ".key");
+	}
+
+	// a hash of everything the content of the jar depends on
+	private String buildKey() throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			ByteArrayOutputStream mf = new ByteArrayOutputStream();
+			manifest.write(mf);
+			digest.update(mf.toByteArray());
+			digest.update(("recompress=" + recompress + "\n").getBytes(StandardCharsets.UTF_8));
+			digest.update(("options=" + options() + "\n").getBytes(StandardCharsets.UTF_8));
+			for (Target t : targets) {
+				mf.reset();
+				t.manifest.write(mf);
+				digest.update((t.jarFile.getAbsolutePath() + "\n").getBytes(StandardCharsets.UTF_8));
+				digest.update(mf.toByteArray());
+			}
+			for (String jar : jars) {
+				File in = new File(jar);
+				// reproducible jars only depend on the content of their inputs
+				String id = reproducible ? in.getName() + "\t" + JarBuildIndex.sha256(in)
+						: in.getAbsolutePath() + "\t" + in.length() + "\t" + in.lastModified();
+				digest.update((id + "\n").getBytes(StandardCharsets.UTF_8));
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : digest.digest())
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * @param name an entry name from an input jar
+	 * @return true if this entry must not go into the merged jar
+	 */
+	static boolean isExcluded(String name) {
+		if (name.equals(META_INF) || name.equalsIgnoreCase(JarFile.MANIFEST_NAME)
+				|| name.equalsIgnoreCase("META-INF/INDEX.LIST"))
+			return true;
+		if (name.startsWith(META_INF) && name.indexOf('/', META_INF.length()) < 0) {
+			String n = name.toUpperCase();
+			return n.endsWith(".SF") || n.endsWith(".RSA") || n.endsWith(".DSA") || n.endsWith(".EC");
+		}
+		return false;
+	}
+
+	/**
+	 * writes the merged jar. The jar is first written to a temporary file, so that
+	 * the previous jar remains usable until the end.
+	 * 
+	 * @param jarFile the jar to write
+	 * @throws IOException
+	 */
+	public void pack(File jarFile) throws IOException {
+		reusedJars = 0;
+		removedClasses = 0;
+		reachable = null;
+		skipped = false;
+		File keyFile = keyFile(jarFile);
+		String key = null;
+		// the reachable classes depend on more than the inputs
+		if (skipUnchanged && treeShaker == null) {
+			key = buildKey();
+			boolean targetsExist = true;
+			for (Target t : targets)
+				targetsExist &= t.jarFile.exists();
+			if (jarFile.exists() && targetsExist && keyFile.exists()
+					&& key.equals(new String(Files.readAllBytes(keyFile.toPath()), StandardCharsets.UTF_8))) {
+				skipped = true;
+				entries = null;
+				stats = null;
+				log.fine(jarFile + " is up to date");
+				return;
+			}
+		}
+		// an interrupted build must not leave a valid key behind
+		if (keyFile.exists())
+			keyFile.delete();
+		if (treeShaker != null)
+			try (PhaseTimer.Phase phase = PhaseTimer.start("tree shaking")) {
+				reachable = treeShaker.reachable(jars);
+				phase.addEntries(reachable.size());
+			}
+		// what is packed from an input does not only depend on this input when tree shaking
+		boolean incremental = this.incremental && reachable == null;
+		File indexFile = indexFile(jarFile);
+		JarBuildIndex previous = null;
+		if (incremental) {
+			previous = JarBuildIndex.load(indexFile);
+			// entries of the previous jar are only reusable if packed the same way
+			if (previous != null && (!previous.matches(jarFile) || !options().equals(previous.options())))
+				previous = null;
+		} else if (indexFile.exists())
+			indexFile.delete();
+		JarBuildIndex index = new JarBuildIndex();
+		index.setOptions(options());
+		stats = new CompressionPolicy.Stats();
+		File tmpFile = partFile(jarFile);
+		FileChannel oldJar = null;
+		List<ZipRecord> oldRecords = null;
+		// inputs must stay open until all their entries are written
+		List<Closeable> inputs = new ArrayList<>();
+		PhaseTimer.Phase merge = PhaseTimer.start("merge");
+		compression = PhaseTimer.start("compression");
+		PhaseTimer.Phase write = null;
+		int entryCount = 0;
+		List<JarWriter> targetJars = new ArrayList<>();
+		targetWriters.clear();
+		boolean done = false;
+		try (JarWriter jw = new JarWriter(tmpFile); ParallelPacker writer = new ParallelPacker(jw, threads)) {
+			for (Target t : targets) {
+				targetJars.add(new JarWriter(partFile(t.jarFile)));
+				// entries are compressed once, by writer
+				targetWriters.add(ParallelPacker.follower(targetJars.get(targetJars.size() - 1), writer));
+			}
+			if (previous != null) {
+				oldJar = FileChannel.open(jarFile.toPath(), StandardOpenOption.READ);
+				oldRecords = ZipDirectory.read(oldJar).records();
+			}
+			fixedTime = reproducible ? reproducibleTime() : -1;
+			int now = reproducible ? fixedTime : ZipRecord.dosTime(System.currentTimeMillis());
+			ByteArrayOutputStream mf = new ByteArrayOutputStream();
+			manifest.write(mf);
+			writer.submit(() -> PackedEntry.store(META_INF, new byte[0], now));
+			writer.submit(() -> PackedEntry.deflate(JarFile.MANIFEST_NAME, mf.toByteArray(), now,
+					Deflater.DEFAULT_COMPRESSION));
+			for (int i = 0; i < targets.size(); i++) {
+				ByteArrayOutputStream tmf = new ByteArrayOutputStream();
+				targets.get(i).manifest.write(tmf);
+				targetWriters.get(i).submit(() -> PackedEntry.store(META_INF, new byte[0], now));
+				targetWriters.get(i).submit(() -> PackedEntry.deflate(JarFile.MANIFEST_NAME, tmf.toByteArray(), now,
+						Deflater.DEFAULT_COMPRESSION));
+			}
+			entries = new EntryIndex();
+			entries.add(META_INF, "", 0, 0);
+			entries.add(JarFile.MANIFEST_NAME, "", 0, 0);
+			for (String jar : jars) {
+				File in = new File(jar);
+				String fingerprint = incremental ? (previous != null ? previous.fingerprint(in) : JarBuildIndex.sha256(in))
+						: "";
+				JarBuildIndex.Input old = previous != null ? previous.find(fingerprint) : null;
+				int first = writer.entryCount();
+				merge.addBytes(in.length());
+				List<String> skipped = new ArrayList<>();
+				if (old != null && entries.containsAll(old.skipped) && old.first + old.count <= oldRecords.size()) {
+					// unchanged input: copy its entries from the previous jar
+					if (!old.skipped.isEmpty())
+						checkSkipped(in, new HashSet<>(old.skipped));
+					skipped.addAll(old.skipped);
+					// entries may have been moved since packing, cf. StartupOrder
+					for (int rank = old.first; rank < old.first + old.count; rank++) {
+						ZipRecord r = oldRecords.get(previous.position(rank));
+						if (entries.add(r.getName(), in.getPath(), r.getCrc(), r.getSize())) {
+							transfer(writer, oldJar, ZipDirectory.dataOffset(oldJar, r), normalized(r));
+							stats.add(r.getName(), r.getSize(), r.getCompressedSize(), 0L);
+						} else
+							skipped.add(r.getName());
+					}
+					reusedJars++;
+				} else
+					packJar(in, writer, skipped, inputs);
+				if (incremental)
+					index.addInput(new JarBuildIndex.Input(jar, in.length(), in.lastModified(), fingerprint, first,
+							writer.entryCount() - first, skipped));
+			}
+			entryCount = writer.entryCount();
+			merge.addEntries(entryCount).close();
+			// what remains: waiting for the last entries and writing the central directory
+			write = PhaseTimer.start("write");
+			// while the workers of writer are still there to compress entries
+			for (int i = 0; i < targets.size(); i++) {
+				targetWriters.get(i).close();
+				targetJars.get(i).close();
+			}
+			done = true;
+		} finally {
+			merge.close();
+			compression.close();
+			if (!done) {
+				for (ParallelPacker tw : targetWriters)
+					tw.abort();
+				for (JarWriter tjw : targetJars)
+					try {
+						tjw.close();
+					} catch (IOException e) {
+						// the build failed anyway
+					}
+				// no incomplete jar is left behind
+				tmpFile.delete();
+				for (Target t : targets)
+					partFile(t.jarFile).delete();
+			}
+			targetWriters.clear();
+			if (oldJar != null)
+				oldJar.close();
+			for (Closeable input : inputs)
+				input.close();
+		}
+		Files.move(tmpFile.toPath(), jarFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		for (Target t : targets)
+			Files.move(partFile(t.jarFile).toPath(), t.jarFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		write.addEntries(entryCount).addBytes(jarFile.length()).close();
+		if (incremental)
+			index.save(indexFile, jarFile);
+		if (key != null)
+			Files.write(keyFile.toPath(), key.getBytes(StandardCharsets.UTF_8));
+		log.fine("Packed " + jars.size() + " jars into " + jarFile + " (" + reusedJars + " reused, " + removedClasses
+				+ " unreachable classes removed, "
+				+ entries.identicalDuplicates() + " identical duplicates, " + entries.conflicts().size()
+				+ " conflicts)");
+	}
+
+	private static File partFile(File jarFile) {
+		return new File(jarFile.getPath() + ".part");
+	}
+
+	// sends an entry to the packed jar and to the targets including it
+	private void transfer(ParallelPacker writer, FileChannel source, long dataOffset, ZipRecord header)
+			throws IOException {
+		writer.transfer(source, dataOffset, header);
+		for (int i = 0; i < targets.size(); i++)
+			if (targets.get(i).include.test(header.getName()))
+				targetWriters.get(i).transfer(source, dataOffset, header);
+	}
+
+	// same, for an entry to compress - only once for all jars
+	private void submit(ParallelPacker writer, String name, Callable<PackedEntry> task) throws IOException {
+		Future<PackedEntry> entry = writer.submit(task);
+		for (int i = 0; i < targets.size(); i++)
+			if (targets.get(i).include.test(name))
+				targetWriters.get(i).add(entry);
+	}
+
+	// what the packed entries depend on besides the inputs
+	private String options() {
+		return policy + (recompress ? ",recompress" : "") + (reproducible ? ",reproducible" : "");
+	}
+
+	// the header of an input entry as written in the packed jar
+	private ZipRecord normalized(ZipRecord r) {
+		return fixedTime < 0 ? r : r.withDosTime(fixedTime);
+	}
+
+	// checks the entries of an unchanged input which were skipped in the previous
+	// build against those packed in this one, for the conflict report
+	private void checkSkipped(File in, Set<String> names) throws IOException {
+		try (FileChannel channel = FileChannel.open(in.toPath(), StandardOpenOption.READ)) {
+			for (ZipRecord r : ZipDirectory.read(channel).records())
+				if (names.contains(r.getName()))
+					entries.add(r.getName(), in.getPath(), r.getCrc(), r.getSize());
+		}
+	}
+
+	// packs all the entries of an input jar, copying their compressed data when
+	// possible and allowed by the policy, decompressing and recompressing them
+	// otherwise
+	// entries skipped because already packed are appended to skipped
+	// opened files are appended to inputs, to close when done
+	private void packJar(File in, ParallelPacker writer, List<String> skipped, List<Closeable> inputs)
+			throws IOException {
+		FileChannel channel = FileChannel.open(in.toPath(), StandardOpenOption.READ);
+		inputs.add(channel);
+		ZipFile zip = null;
+		for (ZipRecord r : ZipDirectory.read(channel).records()) {
+			if (isExcluded(r.getName()))
+				continue;
+			if (reachable != null && r.getName().endsWith(".class") && !reachable.contains(r.getName())) {
+				removedClasses++;
+				continue;
+			}
+			if (!entries.add(r.getName(), in.getPath(), r.getCrc(), r.getSize())) {
+				skipped.add(r.getName());
+				continue;
+			}
+			int action = policy.action(r.getName());
+			if (r.isTransferable() && (action == CompressionPolicy.KEEP && !recompress
+					|| action == CompressionPolicy.STORE && r.getMethod() == ZipRecord.STORED)) {
+				transfer(writer, channel, ZipDirectory.dataOffset(channel, r), normalized(r));
+				stats.add(r.getName(), r.getSize(), r.getCompressedSize(), 0L);
+			} else {
+				if (zip == null) {
+					zip = new ZipFile(in);
+					inputs.add(zip);
+				}
+				ZipFile source = zip;
+				submit(writer, r.getName(), () -> {
+					long start = System.nanoTime();
+					byte[] content;
+					try (InputStream is = source.getInputStream(source.getEntry(r.getName()))) {
+						content = is.readAllBytes();
+					}
+					int dosTime = normalized(r).getDosTime();
+					PackedEntry entry = action == CompressionPolicy.STORE
+							? PackedEntry.store(r.getName(), content, dosTime)
+							: PackedEntry.deflate(r.getName(), content, dosTime,
+									action == CompressionPolicy.KEEP ? Deflater.DEFAULT_COMPRESSION : action);
+					long time = System.nanoTime() - start;
+					compression.addEntries(1).addBytes(content.length).addBusyTime(time);
+					stats.add(r.getName(), content.length, entry.header().getCompressedSize(), time);
+					return entry;
+				});
+			}
+		}
+	}
+
+}
@@ -0,0 +1,316 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipException;
+
+import static fr.cnrs.iees.twsetup.ZipDirectory.*;
+
+/**
+ * A minimal zip (jar) writer working at the level of compressed entries: it
+ * never compresses anything itself, but writes data that was either compressed
+ * beforehand ({@link PackedEntry}) or copied as is from another zip file. This is
+ * what makes it possible to reuse compressed entries from previous builds or
+ * from dependency jars.
+ * 
+ * Entries are written without data descriptors, in the order they are
+ * submitted. The data of an entry may also be streamed as it is compressed
+ * ({@link #beginEntry(String, int, int)}): its local header is then patched
+ * once the sizes and CRC are known. The central directory is written on
+ * {@link #close()}.
+ *
+ */
+public class JarWriter implements Closeable {
+
+	private static final int VERSION = 20;
+	private static final int VERSION_ZIP64 = 45;
+	private static final int UTF8_FLAG = 0x0800;
+
+	private final FileChannel out;
+	private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+	private long position = 0L;
+	// the written entries, with their offsets in this file
+	private final List<ZipRecord> written = new ArrayList<>();
+	// the index of the entry being streamed, -1 if none
+	private int streamed = -1;
+
+	public JarWriter(File file) throws IOException {
+		super();
+		out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * @return the number of entries written so far
+	 */
+	public int entryCount() {
+		return written.size();
+	}
+
+	/**
+	 * @return the number of bytes written so far
+	 */
+	public long position() {
+		return position;
+	}
+
+	/**
+	 * writes an entry whose data has already been compressed according to its
+	 * header
+	 * 
+	 * @param entry the entry to write
+	 * @throws IOException
+	 */
+	public void write(PackedEntry entry) throws IOException {
+		writeLocalHeader(entry.header());
+		put(entry.data());
+	}
+
+	/**
+	 * copies the compressed data of an entry from another zip file, without
+	 * decompressing it
+	 * 
+	 * @param source     an open channel on the source zip file
+	 * @param dataOffset the position of the compressed data in the source, cf.
+	 *                   {@link ZipDirectory#dataOffset(FileChannel, ZipRecord)}
+	 * @param header     the entry description, as read from the source
+	 * @throws IOException
+	 */
+	public void transfer(FileChannel source, long dataOffset, ZipRecord header) throws IOException {
+		writeLocalHeader(header);
+		flush();
+		long count = header.getCompressedSize();
+		long done = 0L;
+		while (done < count) {
+			long n = source.transferTo(dataOffset + done, count - done, out);
+			if (n <= 0)
+				throw new ZipException("Unexpected end of data for entry " + header.getName());
+			done += n;
+		}
+		position += count;
+	}
+
+	/**
+	 * starts an entry whose data is written afterwards by
+	 * {@link #writeData(ByteBuffer)}, as it comes, and completed by
+	 * {@link #endEntry(long, long)}
+	 * 
+	 * @param name    the entry name
+	 * @param method  the compression method of the data
+	 * @param dosTime the entry date, cf. {@link ZipRecord#dosTime(long)}
+	 * @throws IOException
+	 */
+	public void beginEntry(String name, int method, int dosTime) throws IOException {
+		writeLocalHeader(new ZipRecord(name, method, 0, 0L, 0L, 0L, dosTime, 0L));
+		streamed = written.size() - 1;
+	}
+
+	/**
+	 * appends compressed data to the entry started by
+	 * {@link #beginEntry(String, int, int)}
+	 * 
+	 * @param data the compressed data
+	 * @throws IOException
+	 */
+	public void writeData(ByteBuffer data) throws IOException {
+		if (streamed < 0)
+			throw new IllegalStateException("No entry started");
+		put(data);
+	}
+
+	/**
+	 * completes the entry started by {@link #beginEntry(String, int, int)}: the
+	 * CRC and sizes of its local header are overwritten in place
+	 * 
+	 * @param crc  the CRC-32 of the uncompressed content
+	 * @param size the uncompressed size
+	 * @throws IOException
+	 */
+	public void endEntry(long crc, long size) throws IOException {
+		if (streamed < 0)
+			throw new IllegalStateException("No entry started");
+		ZipRecord r = written.get(streamed);
+		streamed = -1;
+		long dataOffset = r.getLocalHeaderOffset() + LOCAL_HEADER_SIZE
+				+ r.getName().getBytes(StandardCharsets.UTF_8).length;
+		long compressedSize = position - dataOffset;
+		if (compressedSize >= 0xFFFFFFFFL || size >= 0xFFFFFFFFL)
+			throw new ZipException("Entry too large: " + r.getName());
+		flush();
+		// crc, compressed size and size follow the signature, versions, flags, method
+		// and date
+		ByteBuffer patch = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+		patch.putInt((int) crc).putInt((int) compressedSize).putInt((int) size).flip();
+		long at = r.getLocalHeaderOffset() + 14;
+		while (patch.hasRemaining())
+			at += out.write(patch, at);
+		written.set(written.size() - 1, new ZipRecord(r.getName(), r.getMethod(), r.getFlags(), crc, compressedSize,
+				size, r.getDosTime(), r.getLocalHeaderOffset()));
+	}
+
+	private void writeLocalHeader(ZipRecord header) throws IOException {
+		if (header.getCompressedSize() >= 0xFFFFFFFFL || header.getSize() >= 0xFFFFFFFFL)
+			throw new ZipException("Entry too large: " + header.getName());
+		byte[] name = header.getName().getBytes(StandardCharsets.UTF_8);
+		written.add(new ZipRecord(header.getName(), header.getMethod(), UTF8_FLAG, header.getCrc(),
+				header.getCompressedSize(), header.getSize(), header.getDosTime(), position));
+		ensure(LOCAL_HEADER_SIZE + name.length);
+		buffer.putInt(LOCAL_HEADER_SIG);
+		buffer.putShort((short) VERSION);
+		buffer.putShort((short) UTF8_FLAG);
+		buffer.putShort((short) header.getMethod());
+		buffer.putInt(header.getDosTime());
+		buffer.putInt((int) header.getCrc());
+		buffer.putInt((int) header.getCompressedSize());
+		buffer.putInt((int) header.getSize());
+		buffer.putShort((short) name.length);
+		buffer.putShort((short) 0);
+		buffer.put(name);
+		position += LOCAL_HEADER_SIZE + name.length;
+	}
+
+	private void writeCentralHeader(ZipRecord r) throws IOException {
+		byte[] name = r.getName().getBytes(StandardCharsets.UTF_8);
+		boolean zip64 = r.getLocalHeaderOffset() >= 0xFFFFFFFFL;
+		int extraLength = zip64 ? 12 : 0;
+		ensure(CENTRAL_HEADER_SIZE + name.length + extraLength);
+		buffer.putInt(CENTRAL_HEADER_SIG);
+		buffer.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+		buffer.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION));
+		buffer.putShort((short) r.getFlags());
+		buffer.putShort((short) r.getMethod());
+		buffer.putInt(r.getDosTime());
+		buffer.putInt((int) r.getCrc());
+		buffer.putInt((int) r.getCompressedSize());
+		buffer.putInt((int) r.getSize());
+		buffer.putShort((short) name.length);
+		buffer.putShort((short) extraLength);
+		buffer.putShort((short) 0); // comment
+		buffer.putShort((short) 0); // disk number
+		buffer.putShort((short) 0); // internal attributes
+		buffer.putInt(r.isDirectory() ? 0x10 : 0); // external attributes
+		buffer.putInt(zip64 ? 0xFFFFFFFF : (int) r.getLocalHeaderOffset());
+		buffer.put(name);
+		if (zip64) {
+			buffer.putShort((short) 0x0001);
+			buffer.putShort((short) 8);
+			buffer.putLong(r.getLocalHeaderOffset());
+		}
+		position += CENTRAL_HEADER_SIZE + name.length + extraLength;
+	}
+
+	private void writeEnd(long cdOffset, long cdSize) throws IOException {
+		long count = written.size();
+		boolean zip64 = count >= 0xFFFF || cdOffset >= 0xFFFFFFFFL || cdSize >= 0xFFFFFFFFL;
+		ensure(56 + ZIP64_LOCATOR_SIZE + END_SIZE);
+		if (zip64) {
+			long z64end = position;
+			buffer.putInt(ZIP64_END_SIG);
+			buffer.putLong(44L);
+			buffer.putShort((short) VERSION_ZIP64);
+			buffer.putShort((short) VERSION_ZIP64);
+			buffer.putInt(0);
+			buffer.putInt(0);
+			buffer.putLong(count);
+			buffer.putLong(count);
+			buffer.putLong(cdSize);
+			buffer.putLong(cdOffset);
+			buffer.putInt(ZIP64_LOCATOR_SIG);
+			buffer.putInt(0);
+			buffer.putLong(z64end);
+			buffer.putInt(1);
+			position += 56 + ZIP64_LOCATOR_SIZE;
+		}
+		buffer.putInt(END_SIG);
+		buffer.putShort((short) 0);
+		buffer.putShort((short) 0);
+		buffer.putShort((short) (zip64 ? 0xFFFF : count));
+		buffer.putShort((short) (zip64 ? 0xFFFF : count));
+		buffer.putInt(zip64 ? 0xFFFFFFFF : (int) cdSize);
+		buffer.putInt(zip64 ? 0xFFFFFFFF : (int) cdOffset);
+		buffer.putShort((short) 0);
+		position += END_SIZE;
+	}
+
+	// makes room for n bytes in the buffer
+	private void ensure(int n) throws IOException {
+		if (buffer.remaining() < n)
+			flush();
+	}
+
+	private void put(ByteBuffer data) throws IOException {
+		int n = data.remaining();
+		if (n > buffer.remaining()) {
+			flush();
+			if (n > buffer.capacity()) {
+				while (data.hasRemaining())
+					out.write(data);
+				position += n;
+				return;
+			}
+		}
+		buffer.put(data);
+		position += n;
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * writes the central directory and closes the file
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			long cdOffset = position;
+			for (ZipRecord r : written)
+				writeCentralHeader(r);
+			writeEnd(cdOffset, position - cdOffset);
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+
+}
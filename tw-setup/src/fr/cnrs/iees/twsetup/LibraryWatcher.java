@@ -0,0 +1,140 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches a directory tree (typically the local ivy repository, where 3Worlds
+ * libraries are published) for changes. Publishing a library writes several
+ * files (jar, ivy file, checksums), and publishing a chain of libraries
+ * (omhtk, then tw-core, ..., then tw-uifx) comes as a burst of such writes:
+ * changes are only reported once the tree has been quiet for a while, so that a
+ * whole burst triggers a single rebuild.
+ *
+ */
+public class LibraryWatcher implements Closeable {
+
+	/** default quiet period, in ms */
+	public static final long DEFAULT_QUIET = 2000L;
+
+	private final Path root;
+	private final long quiet;
+	private final WatchService watcher;
+	private final Map<WatchKey, Path> dirs = new HashMap<>();
+
+	/**
+	 * @param root  the directory to watch, with all its subdirectories
+	 * @param quiet how long (in ms) nothing must change before changes are
+	 *              reported
+	 * @throws IOException
+	 */
+	public LibraryWatcher(Path root, long quiet) throws IOException {
+		super();
+		this.root = root;
+		this.quiet = quiet;
+		Files.createDirectories(root);
+		watcher = FileSystems.getDefault().newWatchService();
+		register(root);
+	}
+
+	// registers a directory and its subdirectories
+	private void register(Path dir) throws IOException {
+		try (Stream<Path> tree = Files.walk(dir)) {
+			for (Path d : (Iterable<Path>) tree.filter(Files::isDirectory)::iterator)
+				dirs.put(d.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), d);
+		}
+	}
+
+	/**
+	 * Waits for changes, then for the end of the burst they belong to.
+	 * 
+	 * @return the changed paths, relative to the watched directory - the empty path
+	 *         if events were lost and anything may have changed
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	public Set<Path> awaitChanges() throws InterruptedException, IOException {
+		Set<Path> changes = new TreeSet<>();
+		WatchKey key = watcher.take();
+		while (key != null) {
+			Path dir = dirs.get(key);
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					changes.add(root.relativize(root));
+					continue;
+				}
+				Path path = dir.resolve((Path) event.context());
+				changes.add(root.relativize(path));
+				// new module or revision directories must be watched too
+				if (event.kind() == ENTRY_CREATE && Files.isDirectory(path))
+					register(path);
+			}
+			if (!key.reset())
+				dirs.remove(key);
+			key = watcher.poll(quiet, TimeUnit.MILLISECONDS);
+		}
+		return changes;
+	}
+
+	/**
+	 * @param changes changed paths in an ivy repository with the usual
+	 *                [organisation]/[module]/[revision]/... layout
+	 * @return the changed modules, as organisation/module/revision
+	 */
+	public static Set<String> modules(Set<Path> changes) {
+		Set<String> modules = new TreeSet<>();
+		for (Path p : changes)
+			if (p.getNameCount() >= 3)
+				modules.add(p.subpath(0, 3).toString().replace('\\', '/'));
+		return modules;
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+
+}
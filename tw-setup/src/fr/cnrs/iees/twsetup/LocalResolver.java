@@ -0,0 +1,524 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import fr.cnrs.iees.omhtk.utils.Logging;
+
+/**
+ * Resolves the 3Worlds libraries of the local ivy repository without the ivy
+ * engine. The repository layout
+ * ({@code [organisation]/[module]/[revision]/[type]s/[artifact].[ext]}) is
+ * indexed once, the published ivy files are read directly and the transitive
+ * closure is computed in memory, with the same revision ordering and conflict
+ * resolution (latest revision wins) as ivy's defaults.
+ * 
+ * Dependencies on modules absent from the local repository (third party
+ * libraries) are not followed: they are returned as an ivy file, for ivy to
+ * resolve. Anything this resolver does not handle (configuration mappings,
+ * excludes, classifiers of local modules, a dynamic revision without local
+ * match...) makes {@link #resolve(File)} return null, so that ivy resolves
+ * everything as before.
+ *
+ */
+public class LocalResolver {
+
+	private static Logger log = Logging.getLogger(LocalResolver.class);
+
+	// ivy's default special meanings of revision parts
+	private static final Map<String, Integer> specialMeanings = Map.of("dev", -1, "rc", 1, "final", 2);
+	private static final Pattern RANGE = Pattern.compile("^([\\[\\]\\(])\\s*([^,\\s]*)\\s*,\\s*([^,\\s]*)\\s*([\\[\\]\\)])$");
+	// dependency attributes this resolver understands for local modules
+	private static final Set<String> LOCAL_ATTRIBUTES = Set.of("org", "name", "rev", "revConstraint", "force",
+			"changing");
+	// the key of the resolved module in Resolution.dependencies
+	private static final String TOP = "";
+
+	/**
+	 * A local module of the closure
+	 */
+	public static class Module {
+		private final String org;
+		private final String name;
+		private final String revision;
+		private final List<File> jars = new ArrayList<>();
+
+		Module(String org, String name, String revision) {
+			this.org = org;
+			this.name = name;
+			this.revision = revision;
+		}
+
+		public String getOrg() {
+			return org;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getRevision() {
+			return revision;
+		}
+
+		/**
+		 * @return the published jars of the module, in the local repository
+		 */
+		public List<File> getJars() {
+			return jars;
+		}
+
+		@Override
+		public String toString() {
+			return org + "#" + name + ";" + revision;
+		}
+	}
+
+	/**
+	 * The result of a local resolution: the local modules and the dependencies left
+	 * to ivy
+	 */
+	public static class Resolution {
+		private final List<Module> modules = new ArrayList<>();
+		// external dependency elements, by module
+		private final Map<String, String> external = new TreeMap<>();
+		private final Map<String, String> namespaces = new TreeMap<>();
+		// the dependencies of the top module (TOP) and of the local modules, in
+		// declaration order
+		private final Map<String, List<String>> dependencies = new HashMap<>();
+
+		public List<Module> modules() {
+			return modules;
+		}
+
+		/**
+		 * @return the modules ({@code org#name}), local and external, in the order of
+		 *         an ivy resolution report of the whole graph: ivy lists all the
+		 *         dependencies of a module before following the first of them. The
+		 *         dependencies of external modules are not known here.
+		 */
+		public List<String> order() {
+			List<String> order = new ArrayList<>();
+			order(TOP, new HashSet<>(List.of(TOP)), new HashSet<>(List.of(TOP)), order);
+			return order;
+		}
+
+		private void order(String key, Set<String> listed, Set<String> visited, List<String> order) {
+			List<String> deps = dependencies.getOrDefault(key, List.of());
+			for (String dep : deps)
+				if (listed.add(dep))
+					order.add(dep);
+			for (String dep : deps)
+				if (visited.add(dep))
+					order(dep, listed, visited, order);
+		}
+
+		/**
+		 * @return true if ivy has nothing left to resolve
+		 */
+		public boolean isLocal() {
+			return external.isEmpty();
+		}
+
+		/**
+		 * writes the dependencies this resolver did not follow as an ivy file
+		 * 
+		 * @param ivyFile the file to write
+		 * @return ivyFile
+		 */
+		public File writeIvyFile(File ivyFile) throws IOException {
+			try (PrintWriter writer = new PrintWriter(ivyFile, "UTF-8")) {
+				StringBuilder root = new StringBuilder("<ivy-module version=\"2.0\"");
+				for (Map.Entry<String, String> ns : namespaces.entrySet())
+					root.append(' ').append(ns.getKey()).append("=\"").append(escape(ns.getValue())).append('"');
+				writer.println(root.append('>'));
+				writer.println(
+						"	<info organisation=\"fr.cnrs.iees.tw-setup\" module=\"tw-setup-external\" revision=\"0.0.1\" status=\"integration\"/>");
+				writer.println("	<dependencies>");
+				// as ivy would meet them in the whole graph
+				for (String key : order())
+					if (external.containsKey(key))
+						writer.println("		" + external.get(key));
+				writer.println("	</dependencies>");
+				writer.println("</ivy-module>");
+			}
+			return ivyFile;
+		}
+	}
+
+	// thrown when the resolution must be left to ivy
+	private static class Unsupported extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		Unsupported(String reason) {
+			super(reason, null, false, false);
+		}
+	}
+
+	// a parsed ivy file
+	private static class Descriptor {
+		String org;
+		String name;
+		final List<Element> dependencies = new ArrayList<>();
+		// null if not declared: the module then publishes one jar named after it
+		List<Element> publications = null;
+		final Map<String, String> namespaces = new HashMap<>();
+	}
+
+	// org#module -> revision -> revision directory
+	private final Map<String, Map<String, File>> index = new HashMap<>();
+	private final Map<File, Descriptor> descriptors = new HashMap<>();
+	private DocumentBuilder parser = null;
+
+	/**
+	 * @param root the local ivy repository
+	 */
+	public LocalResolver(File root) {
+		File[] orgs = root.listFiles(File::isDirectory);
+		if (orgs != null)
+			for (File org : orgs)
+				for (File module : org.listFiles(File::isDirectory))
+					for (File revision : module.listFiles(File::isDirectory))
+						if (ivyFile(revision).exists())
+							index.computeIfAbsent(org.getName() + "#" + module.getName(), k -> new HashMap<>())
+									.put(revision.getName(), revision);
+	}
+
+	private static File ivyFile(File revisionDir) {
+		return new File(revisionDir, "ivys" + File.separator + "ivy.xml");
+	}
+
+	/**
+	 * @return the number of module revisions found in the local repository
+	 */
+	public int size() {
+		int n = 0;
+		for (Map<String, File> revisions : index.values())
+			n += revisions.size();
+		return n;
+	}
+
+	/**
+	 * @param ivyFile the ivy file of the module to resolve
+	 * @return the local modules of its closure and its other dependencies, or null
+	 *         if ivy must resolve it
+	 * @throws IOException if an ivy file cannot be read
+	 */
+	public Resolution resolve(File ivyFile) throws IOException {
+		try {
+			Descriptor top = parse(ivyFile);
+			// latest revision wins: a module found at a later revision is followed
+			// again from the start, so that the dependencies of evicted revisions are
+			// dropped
+			Map<String, String> chosen = new HashMap<>();
+			while (true) {
+				Resolution resolution = new Resolution();
+				if (closure(top, chosen, resolution))
+					return resolution;
+			}
+		} catch (Unsupported e) {
+			log.fine("Local resolution of " + ivyFile + " left to ivy: " + e.getMessage());
+			return null;
+		}
+	}
+
+	// one traversal of the dependency graph - false if a revision changed
+	private boolean closure(Descriptor top, Map<String, String> chosen, Resolution resolution)
+			throws Unsupported, IOException {
+		Map<String, Module> reached = new LinkedHashMap<>();
+		Set<String> visited = new HashSet<>();
+		Deque<Descriptor> todo = new ArrayDeque<>();
+		Deque<String> todoKeys = new ArrayDeque<>();
+		todo.add(top);
+		todoKeys.add(TOP);
+		while (!todo.isEmpty()) {
+			Descriptor d = todo.poll();
+			List<String> deps = new ArrayList<>();
+			resolution.dependencies.put(todoKeys.poll(), deps);
+			for (Element dep : d.dependencies) {
+				String org = dep.hasAttribute("org") ? dep.getAttribute("org") : d.org;
+				String key = org + "#" + dep.getAttribute("name");
+				if (!deps.contains(key))
+					deps.add(key);
+				Map<String, File> revisions = index.get(key);
+				if (revisions == null) {
+					external(dep, org, d, resolution);
+					continue;
+				}
+				checkAttributes(dep, LOCAL_ATTRIBUTES, key);
+				String rev = latest(revisions.keySet(), dep.getAttribute("rev"));
+				if (rev == null)
+					throw new Unsupported("no local revision of " + key + " matches " + dep.getAttribute("rev"));
+				String previous = chosen.get(key);
+				if (previous == null)
+					chosen.put(key, rev);
+				else if (compareRevisions(rev, previous) > 0) {
+					chosen.put(key, rev);
+					return false;
+				}
+				rev = chosen.get(key);
+				if (visited.add(key)) {
+					File dir = revisions.get(rev);
+					Descriptor md = parse(ivyFile(dir));
+					Module m = new Module(org, dep.getAttribute("name"), rev);
+					if (md.publications == null)
+						m.jars.add(jar(dir, md.name, "jar"));
+					else
+						for (Element a : md.publications) {
+							checkAttributes(a, Set.of("name", "type", "ext", "conf"), key);
+							String type = a.hasAttribute("type") ? a.getAttribute("type") : "jar";
+							String ext = a.hasAttribute("ext") ? a.getAttribute("ext") : type;
+							if (ext.equals("jar"))
+								m.jars.add(jar(dir, a.hasAttribute("name") ? a.getAttribute("name") : md.name, type));
+						}
+					reached.put(key, m);
+					todo.add(md);
+					todoKeys.add(key);
+				}
+			}
+		}
+		resolution.modules.addAll(reached.values());
+		return true;
+	}
+
+	private static File jar(File revisionDir, String name, String type) throws Unsupported {
+		File jar = new File(revisionDir, type + "s" + File.separator + name + ".jar");
+		if (!jar.exists())
+			throw new Unsupported(jar + " not found");
+		return jar;
+	}
+
+	// records a dependency left to ivy
+	private static void external(Element dep, String org, Descriptor d, Resolution resolution) throws Unsupported {
+		String key = org + "#" + dep.getAttribute("name");
+		if (dep.hasAttribute("conf"))
+			throw new Unsupported("configuration mapping on " + key);
+		if (dep.getElementsByTagName("*").getLength() > 0)
+			throw new Unsupported("nested elements in the dependency on " + key);
+		StringBuilder xml = new StringBuilder("<dependency org=\"").append(escape(org)).append('"');
+		NamedNodeMap attributes = dep.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Node a = attributes.item(i);
+			if (a.getNodeName().equals("org"))
+				continue;
+			String prefix = a.getNodeName().contains(":") ? a.getNodeName().split(":")[0] : null;
+			if (prefix != null) {
+				String ns = d.namespaces.get("xmlns:" + prefix);
+				String previous = resolution.namespaces.putIfAbsent("xmlns:" + prefix, ns);
+				if (ns == null || (previous != null && !previous.equals(ns)))
+					throw new Unsupported("namespace " + prefix + " in the dependency on " + key);
+			}
+			xml.append(' ').append(a.getNodeName()).append("=\"").append(escape(a.getNodeValue())).append('"');
+		}
+		xml.append("/>");
+		String previous = resolution.external.putIfAbsent(key, xml.toString());
+		if (previous != null && !previous.equals(xml.toString()))
+			throw new Unsupported("different dependencies on " + key);
+	}
+
+	private static void checkAttributes(Element e, Set<String> known, String key) throws Unsupported {
+		NamedNodeMap attributes = e.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++)
+			if (!known.contains(attributes.item(i).getNodeName()))
+				throw new Unsupported("attribute " + attributes.item(i).getNodeName() + " in " + key);
+		if (e.getElementsByTagName("*").getLength() > 0)
+			throw new Unsupported("nested elements in " + key);
+	}
+
+	private Descriptor parse(File ivyFile) throws Unsupported, IOException {
+		Descriptor d = descriptors.get(ivyFile);
+		if (d != null)
+			return d;
+		Element module;
+		try {
+			if (parser == null)
+				parser = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			module = parser.parse(ivyFile).getDocumentElement();
+		} catch (SAXException | ParserConfigurationException e) {
+			throw new IOException("Cannot read " + ivyFile + ": " + e.getMessage(), e);
+		}
+		d = new Descriptor();
+		NamedNodeMap attributes = module.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++)
+			if (attributes.item(i).getNodeName().startsWith("xmlns:"))
+				d.namespaces.put(attributes.item(i).getNodeName(), attributes.item(i).getNodeValue());
+		for (Element e : children(module))
+			switch (e.getTagName()) {
+			case "info":
+				d.org = e.getAttribute("organisation");
+				d.name = e.getAttribute("module");
+				for (Element i : children(e))
+					if (!i.getTagName().equals("license") && !i.getTagName().equals("description")
+							&& !i.getTagName().equals("ivyauthor") && !i.getTagName().equals("repository"))
+						throw new Unsupported("<" + i.getTagName() + "> in " + ivyFile);
+				break;
+			case "configurations":
+				break;
+			case "publications":
+				d.publications = children(e);
+				break;
+			case "dependencies":
+				if (e.getAttributes().getLength() > 0)
+					throw new Unsupported("default configurations in " + ivyFile);
+				for (Element dep : children(e))
+					if (dep.getTagName().equals("dependency"))
+						d.dependencies.add(dep);
+					else
+						throw new Unsupported("<" + dep.getTagName() + "> in " + ivyFile);
+				break;
+			default:
+				throw new Unsupported("<" + e.getTagName() + "> in " + ivyFile);
+			}
+		descriptors.put(ivyFile, d);
+		return d;
+	}
+
+	private static List<Element> children(Element e) {
+		List<Element> list = new ArrayList<>();
+		NodeList nodes = e.getChildNodes();
+		for (int i = 0; i < nodes.getLength(); i++)
+			if (nodes.item(i) instanceof Element)
+				list.add((Element) nodes.item(i));
+		return list;
+	}
+
+	private static String escape(String s) {
+		return s.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;");
+	}
+
+	/**
+	 * @param revisions the available revisions
+	 * @param asked     a revision, a range ({@code [1.0,2.0[}), a prefix
+	 *                  ({@code 1.0.+}) or {@code latest.integration}
+	 * @return the latest revision matching asked, or null
+	 * @throws Unsupported if asked is another dynamic revision
+	 */
+	private static String latest(Set<String> revisions, String asked) throws Unsupported {
+		String best = null;
+		for (String rev : revisions)
+			if (matches(asked, rev) && (best == null || compareRevisions(rev, best) > 0))
+				best = rev;
+		return best;
+	}
+
+	static boolean matches(String asked, String rev) throws Unsupported {
+		if (asked.equals("latest.integration") || asked.equals("+"))
+			return true;
+		if (asked.startsWith("latest."))
+			throw new Unsupported("status-dependent revision " + asked);
+		if (asked.endsWith("+"))
+			return rev.startsWith(asked.substring(0, asked.length() - 1));
+		Matcher range = RANGE.matcher(asked);
+		if (range.matches()) {
+			String lower = range.group(2);
+			String upper = range.group(3);
+			if (!lower.isEmpty()) {
+				int c = compareRevisions(rev, lower);
+				if (c < 0 || (c == 0 && !range.group(1).equals("[")))
+					return false;
+			}
+			if (!upper.isEmpty()) {
+				int c = compareRevisions(rev, upper);
+				if (c > 0 || (c == 0 && !range.group(4).equals("]")))
+					return false;
+			}
+			return true;
+		}
+		return rev.equals(asked);
+	}
+
+	/**
+	 * compares revisions as ivy's latest-revision strategy does: numbers
+	 * numerically, {@code dev < (other words) < rc < final}, and a number is later
+	 * than a word
+	 */
+	static int compareRevisions(String rev1, String rev2) {
+		String[] parts1 = rev1.replaceAll("([a-zA-Z])(\\d)", "$1.$2").replaceAll("(\\d)([a-zA-Z])", "$1.$2")
+				.split("[\\._\\-\\+]");
+		String[] parts2 = rev2.replaceAll("([a-zA-Z])(\\d)", "$1.$2").replaceAll("(\\d)([a-zA-Z])", "$1.$2")
+				.split("[\\._\\-\\+]");
+		int i = 0;
+		for (; i < parts1.length && i < parts2.length; i++) {
+			if (parts1[i].equals(parts2[i]))
+				continue;
+			boolean is1Number = isNumber(parts1[i]);
+			boolean is2Number = isNumber(parts2[i]);
+			if (is1Number && !is2Number)
+				return 1;
+			if (is2Number && !is1Number)
+				return -1;
+			if (is1Number && is2Number)
+				return new BigInteger(parts1[i]).compareTo(new BigInteger(parts2[i]));
+			Integer sm1 = specialMeanings.get(parts1[i].toLowerCase(Locale.US));
+			Integer sm2 = specialMeanings.get(parts2[i].toLowerCase(Locale.US));
+			if (sm1 != null || sm2 != null)
+				return Integer.compare(sm1 == null ? 0 : sm1, sm2 == null ? 0 : sm2);
+			return parts1[i].compareTo(parts2[i]);
+		}
+		if (i < parts1.length)
+			return isNumber(parts1[i]) ? 1 : -1;
+		if (i < parts2.length)
+			return isNumber(parts2[i]) ? -1 : 1;
+		return 0;
+	}
+
+	private static boolean isNumber(String s) {
+		return !s.isEmpty() && s.chars().allMatch(Character::isDigit);
+	}
+
+}
@@ -0,0 +1,114 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A jar entry ready to be written by a {@link JarWriter}: a header and the
+ * compressed data matching this header.
+ *
+ */
+public class PackedEntry {
+
+	// deflaters are expensive to create, so reuse one per thread
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal
+			.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+	private final ZipRecord header;
+	private final ByteBuffer data;
+
+	private PackedEntry(ZipRecord header, ByteBuffer data) {
+		this.header = header;
+		this.data = data;
+	}
+
+	public ZipRecord header() {
+		return header;
+	}
+
+	/**
+	 * @return a read-only view of the compressed data
+	 */
+	public ByteBuffer data() {
+		return data.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Makes an uncompressed entry
+	 * 
+	 * @param name    the entry name
+	 * @param content the entry content
+	 * @param dosTime the entry date, cf. {@link ZipRecord#dosTime(long)}
+	 * @return the entry
+	 */
+	public static PackedEntry store(String name, byte[] content, int dosTime) {
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return new PackedEntry(
+				new ZipRecord(name, ZipRecord.STORED, 0, crc.getValue(), content.length, content.length, dosTime, 0L),
+				ByteBuffer.wrap(content));
+	}
+
+	/**
+	 * Makes a deflated entry. Empty entries (e.g. directories) are stored.
+	 * 
+	 * @param name    the entry name
+	 * @param content the entry content
+	 * @param dosTime the entry date, cf. {@link ZipRecord#dosTime(long)}
+	 * @param level   the compression level (0-9, or -1 for the default level)
+	 * @return the entry
+	 */
+	public static PackedEntry deflate(String name, byte[] content, int dosTime, int level) {
+		if (content.length == 0)
+			return store(name, content, dosTime);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setLevel(level);
+		deflater.setInput(content);
+		deflater.finish();
+		byte[] out = new byte[Math.max(64, content.length / 2)];
+		int length = 0;
+		while (!deflater.finished()) {
+			if (length == out.length)
+				out = Arrays.copyOf(out, out.length * 2);
+			length += deflater.deflate(out, length, out.length - length);
+		}
+		return new PackedEntry(
+				new ZipRecord(name, ZipRecord.DEFLATED, 0, crc.getValue(), length, content.length, dosTime, 0L),
+				ByteBuffer.wrap(out, 0, length));
+	}
+
+}
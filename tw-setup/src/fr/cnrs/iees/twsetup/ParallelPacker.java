@@ -0,0 +1,210 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A front-end to a {@link JarWriter} which compresses entries on a pool of
+ * worker threads. Entries are written in the exact order they were submitted,
+ * whatever the order in which workers complete, so that the output is the same
+ * as with a single thread.
+ * 
+ * The number of entries waiting to be written is bounded, so that memory use
+ * does not depend on the size of the jar.
+ *
+ */
+public class ParallelPacker implements Closeable {
+
+	// one step of the output, to be run in submission order
+	private interface Step {
+		void writeTo(JarWriter writer) throws IOException;
+	}
+
+	private final JarWriter writer;
+	private final ExecutorService pool;
+	private final int window;
+	private final Deque<Step> pending = new ArrayDeque<>();
+	private int submitted = 0;
+
+	/**
+	 * @param writer  the jar writer to send entries to
+	 * @param threads the number of compression threads. With 1 or less,
+	 *                compression happens in the calling thread.
+	 */
+	public ParallelPacker(JarWriter writer, int threads) {
+		super();
+		this.writer = writer;
+		if (threads > 1) {
+			pool = Executors.newFixedThreadPool(threads, r -> {
+				Thread t = new Thread(r, "jar-packer");
+				t.setDaemon(true);
+				return t;
+			});
+			window = threads * 64;
+		} else {
+			pool = null;
+			window = 0;
+		}
+	}
+
+	private ParallelPacker(JarWriter writer, int window, ExecutorService pool) {
+		super();
+		this.writer = writer;
+		this.window = window;
+		this.pool = pool;
+	}
+
+	/**
+	 * makes a packer without threads of its own, for entries mostly compressed by
+	 * another packer and sent by {@link #add(Future)}: it keeps as many entries
+	 * waiting as the other one, so that writing does not wait for compression.
+	 * 
+	 * @param writer the jar writer to send entries to
+	 * @param leader the packer compressing the entries
+	 * @return the packer
+	 */
+	public static ParallelPacker follower(JarWriter writer, ParallelPacker leader) {
+		return new ParallelPacker(writer, leader.window, null);
+	}
+
+	/**
+	 * @return the default number of threads, ie the number of cores
+	 */
+	public static int defaultThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * @return the number of entries submitted so far
+	 */
+	public int entryCount() {
+		return submitted;
+	}
+
+	/**
+	 * submits an entry to compress
+	 * 
+	 * @param task the computation of the entry - will run on a worker thread
+	 * @return the future entry, which can also be sent to other packers, cf.
+	 *         {@link #add(Future)}
+	 * @throws IOException
+	 */
+	public Future<PackedEntry> submit(Callable<PackedEntry> task) throws IOException {
+		Future<PackedEntry> f;
+		if (pool == null)
+			try {
+				f = CompletableFuture.completedFuture(task.call());
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e);
+			}
+		else
+			f = pool.submit(task);
+		append(w -> w.write(get(f)));
+		return f;
+	}
+
+	/**
+	 * submits an entry computed by another packer, e.g. when writing several jars
+	 * sharing entries, so that they are only compressed once
+	 * 
+	 * @param entry the future entry
+	 * @throws IOException
+	 */
+	public void add(Future<PackedEntry> entry) throws IOException {
+		append(w -> w.write(get(entry)));
+	}
+
+	/**
+	 * submits an entry to copy as is from another zip file, cf.
+	 * {@link JarWriter#transfer(FileChannel, long, ZipRecord)}
+	 */
+	public void transfer(FileChannel source, long dataOffset, ZipRecord header) throws IOException {
+		append(w -> w.transfer(source, dataOffset, header));
+	}
+
+	private void append(Step step) throws IOException {
+		pending.addLast(step);
+		submitted++;
+		while (pending.size() > window)
+			pending.removeFirst().writeTo(writer);
+	}
+
+	private static PackedEntry get(Future<PackedEntry> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * drops the pending entries and stops the worker threads, after an error. Does
+	 * not close the jar writer.
+	 */
+	public void abort() {
+		pending.clear();
+		if (pool != null)
+			pool.shutdownNow();
+	}
+
+	/**
+	 * writes all pending entries and stops the worker threads. Does not close the
+	 * jar writer.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			while (!pending.isEmpty())
+				pending.removeFirst().writeTo(writer);
+		} finally {
+			if (pool != null)
+				pool.shutdownNow();
+		}
+	}
+
+}
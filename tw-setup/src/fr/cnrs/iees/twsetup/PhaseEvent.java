@@ -0,0 +1,69 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * The flight recorder event for one phase of a TwSetup run (cf.
+ * {@link PhaseTimer}). Recorded when the JVM runs with
+ * {@code -XX:StartFlightRecording} or with the {@code -jfr} option of
+ * {@link TwSetup}.
+ *
+ */
+@Name("fr.cnrs.iees.twsetup.Phase")
+@Label("TwSetup Phase")
+@Category({ "3Worlds", "TwSetup" })
+@Description("One phase of the generation of tw-dep.jar")
+public class PhaseEvent extends Event {
+
+	@Label("Phase")
+	public String phase;
+
+	@Label("Bytes")
+	@DataAmount
+	public long bytes;
+
+	@Label("Entries")
+	@Description("Number of jar entries, artifacts or files processed")
+	public long entries;
+
+	@Label("Busy Time")
+	@Description("Time summed over all the worker threads of the phase")
+	@Timespan(Timespan.NANOSECONDS)
+	public long busyTime;
+
+}
@@ -0,0 +1,177 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the duration, byte count and entry count of the phases of a TwSetup
+ * run (ivy configuration, resolution, retrieval, merging, compression,
+ * writing...). Each phase is committed as a {@link PhaseEvent} for the flight
+ * recorder, and the whole run can be printed as a table at the end.
+ * 
+ * Phases may be nested or overlap. Counters may be updated from any thread.
+ *
+ */
+public class PhaseTimer {
+
+	/**
+	 * One phase, started by {@link PhaseTimer#start(String)} and ended by
+	 * {@link #close()}
+	 */
+	public static class Phase implements AutoCloseable {
+		private final String name;
+		private final PhaseEvent event = new PhaseEvent();
+		private final long start = System.nanoTime();
+		private long duration = -1;
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong entries = new AtomicLong();
+		private final AtomicLong busyTime = new AtomicLong();
+
+		private Phase(String name) {
+			this.name = name;
+			event.begin();
+		}
+
+		public Phase addBytes(long n) {
+			bytes.addAndGet(n);
+			return this;
+		}
+
+		public Phase addEntries(long n) {
+			entries.addAndGet(n);
+			return this;
+		}
+
+		/**
+		 * @param nanos time spent by a worker thread on this phase
+		 */
+		public Phase addBusyTime(long nanos) {
+			busyTime.addAndGet(nanos);
+			return this;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the duration of the phase in ns, or -1 if not ended
+		 */
+		public long getDuration() {
+			return duration;
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		public long getEntries() {
+			return entries.get();
+		}
+
+		public long getBusyTime() {
+			return busyTime.get();
+		}
+
+		/**
+		 * ends the phase - further calls do nothing
+		 */
+		@Override
+		public synchronized void close() {
+			if (duration >= 0)
+				return;
+			duration = System.nanoTime() - start;
+			event.end();
+			if (event.shouldCommit()) {
+				event.phase = name;
+				event.bytes = bytes.get();
+				event.entries = entries.get();
+				event.busyTime = busyTime.get();
+				event.commit();
+			}
+		}
+	}
+
+	private static final List<Phase> phases = new ArrayList<>();
+
+	private PhaseTimer() {
+	}
+
+	/**
+	 * @param name the name of the phase, as printed in the summary
+	 * @return the started phase
+	 */
+	public static Phase start(String name) {
+		Phase phase = new Phase(name);
+		synchronized (phases) {
+			phases.add(phase);
+		}
+		return phase;
+	}
+
+	/**
+	 * @return all the phases started since the last reset, in starting order
+	 */
+	public static List<Phase> phases() {
+		synchronized (phases) {
+			return new ArrayList<>(phases);
+		}
+	}
+
+	public static void reset() {
+		synchronized (phases) {
+			phases.clear();
+		}
+	}
+
+	private static String ms(long nanos) {
+		return String.format("%.1f", nanos / 1e6);
+	}
+
+	/**
+	 * @return the table of all the phases started since the last reset
+	 */
+	public static String summary() {
+		NumberFormat nf = NumberFormat.getNumberInstance();
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%-24s%12s%12s%12s%16s%n", "PHASE", "TIME (ms)", "BUSY (ms)", "ENTRIES", "BYTES"));
+		for (Phase p : phases())
+			sb.append(String.format("%-24s%12s%12s%12s%16s%n", p.getName(),
+					p.getDuration() < 0 ? "-" : ms(p.getDuration()), p.getBusyTime() == 0 ? "" : ms(p.getBusyTime()),
+					p.getEntries() == 0 ? "" : nf.format(p.getEntries()),
+					p.getBytes() == 0 ? "" : nf.format(p.getBytes())));
+		return sb.toString();
+	}
+
+}
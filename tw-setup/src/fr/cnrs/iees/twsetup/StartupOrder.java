@@ -0,0 +1,165 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarFile;
+
+/**
+ * Lays out the entries of a packed jar in class loading order, so that reading
+ * the classes needed at startup is close to sequential. The loading order is
+ * read from a class list, as written by the JVM with
+ * {@code -XX:DumpLoadedClassList} - either from a real startup or from a
+ * training run (cf. {@link CdsTraining}).
+ * 
+ * The manifest stays first, then come the classes of the list in list order,
+ * then all the other entries in their previous order. Entries are copied
+ * without being decompressed.
+ *
+ */
+public class StartupOrder {
+
+	private StartupOrder() {
+	}
+
+	/**
+	 * reads a class list. Lines of the JVM format are
+	 * {@code a/b/C id: 12 ...}: only the class name is kept. Comments and
+	 * non-class lines (e.g. {@code @lambda-proxy ...}) are ignored.
+	 * 
+	 * @param classList the class list file
+	 * @return the class names, in internal form, in loading order
+	 */
+	public static List<String> read(File classList) throws IOException {
+		List<String> classes = new ArrayList<>();
+		try (BufferedReader fr = new BufferedReader(new FileReader(classList))) {
+			String line = fr.readLine();
+			while (line != null) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#") && !line.startsWith("@"))
+					classes.add(line.split("\\s+")[0].replace('.', '/'));
+				line = fr.readLine();
+			}
+		}
+		return classes;
+	}
+
+	/**
+	 * records the loading order of the classes reachable from the main classes,
+	 * by a training run on the packed jar
+	 * 
+	 * @param jarFile     the packed jar
+	 * @param mainClasses the entry points
+	 * @return the class names, in internal form, in loading order
+	 */
+	public static List<String> record(File jarFile, List<String> mainClasses) throws IOException {
+		File classList = new File(jarFile.getPath() + ".classlist");
+		File logFile = new File(jarFile.getPath() + ".training.log");
+		Files.deleteIfExists(logFile.toPath());
+		try {
+			CdsTraining.record(jarFile, mainClasses, classList, logFile);
+			return read(classList);
+		} finally {
+			classList.delete();
+		}
+	}
+
+	/**
+	 * rewrites a jar with the classes of a list first. The jar build index
+	 * (cf. {@link JarBuildIndex}) records the new positions of the entries, so
+	 * that the next incremental build can still reuse them.
+	 * 
+	 * @param jarFile the jar to rewrite
+	 * @param classes the class names, in internal form, in loading order
+	 * @return the number of entries moved to the front of the jar
+	 */
+	public static int reorder(File jarFile, List<String> classes) throws IOException {
+		File tmpFile = new File(jarFile.getPath() + ".part");
+		File indexFile = JarPacker.indexFile(jarFile);
+		JarBuildIndex index = JarBuildIndex.load(indexFile);
+		if (index != null && !index.matches(jarFile))
+			index = null;
+		int moved = 0;
+		int[] positions;
+		boolean done = false;
+		try {
+			try (FileChannel in = FileChannel.open(jarFile.toPath(), StandardOpenOption.READ);
+					JarWriter out = new JarWriter(tmpFile)) {
+				List<ZipRecord> records = ZipDirectory.read(in).records();
+				// positions in the jar, by entry name
+				Map<String, Integer> rest = new LinkedHashMap<>();
+				for (int i = 0; i < records.size(); i++)
+					rest.put(records.get(i).getName(), i);
+				List<Integer> order = new ArrayList<>();
+				// the manifest must come first
+				for (String name : List.of("META-INF/", JarFile.MANIFEST_NAME))
+					if (rest.containsKey(name))
+						order.add(rest.remove(name));
+				for (String c : classes) {
+					Integer i = rest.remove(c + ".class");
+					if (i != null) {
+						order.add(i);
+						moved++;
+					}
+				}
+				order.addAll(rest.values());
+				positions = new int[order.size()];
+				for (int i = 0; i < positions.length; i++) {
+					ZipRecord r = records.get(order.get(i));
+					out.transfer(in, ZipDirectory.dataOffset(in, r), r);
+					positions[i] = order.get(i);
+				}
+			}
+			Files.move(tmpFile.toPath(), jarFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			done = true;
+		} finally {
+			if (!done)
+				tmpFile.delete();
+		}
+		if (index != null) {
+			index.moved(positions);
+			index.save(indexFile, jarFile);
+		} else
+			Files.deleteIfExists(indexFile.toPath());
+		return moved;
+	}
+
+}
@@ -29,6 +29,14 @@
  **************************************************************************/
 package fr.cnrs.iees.twsetup;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
 import au.edu.anu.omhtk.jars.Jars;
 
 /**
@@ -41,6 +49,37 @@ import au.edu.anu.omhtk.jars.Jars;
  */
 public class ThreeWorldsJar extends Jars{
 
+	// an application jar written with this one
+	private static class Launcher {
+		final File jarFile;
+		final String mainClass;
+		final Predicate<String> include;
+
+		Launcher(File jarFile, String mainClass, Predicate<String> include) {
+			this.jarFile = jarFile;
+			this.mainClass = mainClass;
+			this.include = include;
+		}
+	}
+	
+	// what's needed to write the jar without the Jars machinery
+	private List<String> jars = new ArrayList<>();
+	private List<String> classPath = new ArrayList<>();
+	private String mainClass = null;
+	private boolean incremental = false;
+	private int threads = ParallelPacker.defaultThreads();
+	private boolean recompress = false;
+	private int reusedJars = 0;
+	private EntryIndex entries = null;
+	private TreeShaker treeShaker = null;
+	private int removedClasses = 0;
+	private boolean skipUnchanged = false;
+	private boolean skipped = false;
+	private CompressionPolicy compressionPolicy = new CompressionPolicy();
+	private CompressionPolicy.Stats compressionStats = null;
+	private boolean reproducible = false;
+	private List<Launcher> launchers = new ArrayList<>();
+
 	public ThreeWorldsJar(String major, String minor, String micro) {
 		super();
 		version = major+"."+minor+"."+micro;
@@ -48,5 +87,199 @@ public class ThreeWorldsJar extends Jars{
 		specTitle = "3Worlds";
 	}
 
-	
+	/**
+	 * A jar without version in its manifest, for content which does not change
+	 * with the 3Worlds version (e.g. a layer of third party libraries).
+	 */
+	public ThreeWorldsJar() {
+		super();
+		specVendor = "Gignoux, Davies & Flint";
+		specTitle = "3Worlds";
+	}
+
+	@Override
+	public void addJar(String jarFile) {
+		super.addJar(jarFile);
+		jars.add(jarFile);
+	}
+
+	@Override
+	public void addDependencyOnJar(String jarFile) {
+		super.addDependencyOnJar(jarFile);
+		classPath.add(jarFile);
+	}
+
+	@Override
+	public void setMainClass(String mainClass) {
+		super.setMainClass(mainClass);
+		this.mainClass = mainClass;
+	}
+
+	/**
+	 * In incremental mode, entries of the jars that did not change since the
+	 * previous build are copied from the previous jar, cf. {@link JarPacker}.
+	 * 
+	 * @param incremental
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * @param threads the number of threads used to compress the jar entries
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * @param recompress if true, entries of dependency jars are recompressed rather
+	 *                   than copied as is
+	 */
+	public void setRecompress(boolean recompress) {
+		this.recompress = recompress;
+	}
+
+	/**
+	 * Writes another jar with the same content (or part of it) but another main
+	 * class, in the same pass, cf. {@link JarPacker.Target}.
+	 * 
+	 * @param jarFile   the application jar
+	 * @param mainClass its main class
+	 * @param include   which entries (by name) it contains
+	 */
+	public void addLauncher(File jarFile, String mainClass, Predicate<String> include) {
+		launchers.add(new Launcher(jarFile, mainClass, include));
+	}
+
+	/**
+	 * @param reproducible if true, the jar only depends on the content and order of
+	 *                     its inputs, cf. {@link JarPacker#setReproducible(boolean)}
+	 */
+	public void setReproducible(boolean reproducible) {
+		this.reproducible = reproducible;
+	}
+
+	/**
+	 * @param policy how entries are compressed depending on their content, cf.
+	 *               {@link CompressionPolicy}
+	 */
+	public void setCompressionPolicy(CompressionPolicy policy) {
+		this.compressionPolicy = policy;
+	}
+
+	/**
+	 * @return the sizes and compression times per entry category of the last
+	 *         saved jar, or null if it was not written
+	 */
+	public CompressionPolicy.Stats compressionStats() {
+		return compressionStats;
+	}
+
+	/**
+	 * @param treeShaker if not null, only the classes it finds reachable are
+	 *                   packed, cf. {@link JarPacker#setTreeShaker(TreeShaker)}
+	 */
+	public void setTreeShaker(TreeShaker treeShaker) {
+		this.treeShaker = treeShaker;
+	}
+
+	/**
+	 * @return the number of unreachable classes dropped by the last save
+	 */
+	public int removedClasses() {
+		return removedClasses;
+	}
+
+	/**
+	 * @param skipUnchanged if true, the jar is only written if its inputs changed
+	 *                      since it was last written, cf.
+	 *                      {@link JarPacker#setSkipUnchanged(boolean)}
+	 */
+	public void setSkipUnchanged(boolean skipUnchanged) {
+		this.skipUnchanged = skipUnchanged;
+	}
+
+	/**
+	 * @return true if the last save found the jar up to date
+	 */
+	public boolean skipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return the number of jars reused from the previous build by the last
+	 *         incremental save
+	 */
+	public int reusedJars() {
+		return reusedJars;
+	}
+
+	/**
+	 * @return the entries of the last saved jar, with duplicates and conflicts
+	 *         between the packed jars
+	 */
+	public EntryIndex entries() {
+		return entries;
+	}
+
+	public Manifest manifest() {
+		return manifest(mainClass);
+	}
+
+	private Manifest manifest(String mainClass) {
+		Manifest manifest = new Manifest();
+		Attributes att = manifest.getMainAttributes();
+		att.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		if (mainClass != null)
+			att.put(Attributes.Name.MAIN_CLASS, mainClass);
+		if (!classPath.isEmpty())
+			att.put(Attributes.Name.CLASS_PATH, String.join(" ", classPath));
+		att.put(Attributes.Name.SPECIFICATION_TITLE, specTitle);
+		if (version != null)
+			att.put(Attributes.Name.SPECIFICATION_VERSION, version);
+		att.put(Attributes.Name.SPECIFICATION_VENDOR, specVendor);
+		return manifest;
+	}
+
+	/**
+	 * Writes the jar using a {@link JarPacker}, which compresses entries in parallel
+	 * (unlike {@link Jars#saveJar(File)}). Errors are only printed: use
+	 * {@link #pack(File)} to get them.
+	 */
+	@Override
+	public void saveJar(File jarFile) {
+		try {
+			pack(jarFile);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the jar using a {@link JarPacker}. The jar is written to a temporary
+	 * file first, so that on error the previous jar, if any, is left as it was.
+	 * 
+	 * @param jarFile the jar to write
+	 * @throws IOException
+	 */
+	public void pack(File jarFile) throws IOException {
+		JarPacker packer = new JarPacker(manifest(), jars);
+		packer.setIncremental(incremental);
+		packer.setThreads(threads);
+		packer.setRecompress(recompress);
+		packer.setCompressionPolicy(compressionPolicy);
+		packer.setReproducible(reproducible);
+		for (Launcher l : launchers)
+			packer.addTarget(new JarPacker.Target(l.jarFile, manifest(l.mainClass), l.include));
+		packer.setTreeShaker(treeShaker);
+		packer.setSkipUnchanged(skipUnchanged);
+		packer.pack(jarFile);
+		reusedJars = packer.reusedJars();
+		removedClasses = packer.removedClasses();
+		skipped = packer.skipped();
+		entries = packer.entries();
+		compressionStats = packer.compressionStats();
+	}
+
 }
@@ -0,0 +1,250 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import fr.cnrs.iees.omhtk.utils.Logging;
+
+/**
+ * Finds the classes reachable from a set of entry points in a list of jars, so
+ * that the others can be dropped from the merged jar (cf.
+ * {@link JarPacker#setTreeShaker(TreeShaker)}).
+ * 
+ * The class reference graph is built from the constant pools of the classes
+ * (cf. {@link ClassReferences}). Since classes can also be loaded by name, the
+ * following classes are kept whatever their references:
+ * <ul>
+ * <li>classes matching a keep rule: {@code a.b.C} (one class), {@code a.b.*}
+ * (the classes of a package), {@code a.b.**} (the classes of a package and its
+ * subpackages)</li>
+ * <li>service providers listed in {@code META-INF/services}</li>
+ * <li>controllers and classes imported by FXML files</li>
+ * <li>classes named in {@code .properties} and {@code .xml} resources (e.g.
+ * plugin registries)</li>
+ * <li>classes whose name appears as a string constant in a kept class</li>
+ * </ul>
+ * Non-class entries are always kept.
+ *
+ */
+public class TreeShaker {
+
+	private static Logger log = Logging.getLogger(TreeShaker.class);
+
+	private static final String CLASS = ".class";
+	private static final String SERVICES = "META-INF/services/";
+	private static final Pattern FXML_CONTROLLER = Pattern.compile("fx:controller\\s*=\\s*\"([^\"]+)\"");
+	private static final Pattern FXML_IMPORT = Pattern.compile("<\\?import\\s+([^?\\s]+)\\s*\\?>");
+	private static final Pattern CLASS_NAME = Pattern.compile("[A-Za-z_$][\\w$]*(\\.[A-Za-z_$][\\w$]*)+");
+
+	private final Set<String> roots = new HashSet<>();
+	private final List<String> keepRules = new ArrayList<>();
+	private Set<String> removed = new HashSet<>();
+
+	/**
+	 * @param roots the entry points, as binary class names (e.g. {@code a.b.Main})
+	 */
+	public TreeShaker(Collection<String> roots) {
+		super();
+		this.roots.addAll(roots);
+	}
+
+	/**
+	 * @param rule a class name, or a package name followed by {@code .*} or
+	 *             {@code .**}
+	 */
+	public void addKeepRule(String rule) {
+		keepRules.add(rule.trim());
+	}
+
+	/**
+	 * reads keep rules from a text file, one per line. Empty lines and lines
+	 * starting with '#' are ignored.
+	 * 
+	 * @param file the keep rules file
+	 */
+	public void addKeepRules(File file) throws IOException {
+		try (BufferedReader fr = new BufferedReader(new FileReader(file))) {
+			String line = fr.readLine();
+			while (line != null) {
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#"))
+					addKeepRule(line);
+				line = fr.readLine();
+			}
+		}
+	}
+
+	// true if the class (internal name) matches a keep rule
+	private boolean isKept(String name) {
+		String binary = name.replace('/', '.');
+		for (String rule : keepRules)
+			if (rule.endsWith(".**")) {
+				if (binary.startsWith(rule.substring(0, rule.length() - 2)))
+					return true;
+			} else if (rule.endsWith(".*")) {
+				String pkg = rule.substring(0, rule.length() - 1);
+				if (binary.startsWith(pkg) && binary.indexOf('.', pkg.length()) < 0)
+					return true;
+			} else if (binary.equals(rule))
+				return true;
+		return false;
+	}
+
+	// classes which do not need to be referenced to be useful
+	private static boolean isAlwaysKept(String entry) {
+		return entry.startsWith("META-INF/") || entry.endsWith("module-info.class")
+				|| entry.endsWith("package-info.class");
+	}
+
+	/**
+	 * computes the classes to keep
+	 * 
+	 * @param jars the jars to merge, in merging order
+	 * @return the entry names ({@code a/b/C.class}) of the classes to keep
+	 */
+	public Set<String> reachable(List<String> jars) throws IOException {
+		// the class files that will be packed: the first one of each name
+		Map<String, ZipFile> classes = new HashMap<>();
+		List<ZipFile> zips = new ArrayList<>();
+		Deque<String> queue = new ArrayDeque<>();
+		Set<String> kept = new HashSet<>();
+		try {
+			for (String jar : jars) {
+				ZipFile zip = new ZipFile(jar);
+				zips.add(zip);
+				Enumeration<? extends ZipEntry> en = zip.entries();
+				while (en.hasMoreElements()) {
+					ZipEntry e = en.nextElement();
+					String entry = e.getName();
+					if (entry.endsWith(CLASS))
+						classes.putIfAbsent(entry.substring(0, entry.length() - CLASS.length()), zip);
+					else if (entry.startsWith(SERVICES) && !e.isDirectory())
+						for (String line : read(zip, e).split("\n")) {
+							// provider-configuration file: one class name per line, comments after '#'
+							String provider = line.replaceAll("#.*", "").trim();
+							if (!provider.isEmpty())
+								queue.add(provider.replace('.', '/'));
+						}
+					else if (entry.endsWith(".fxml"))
+						fxmlClasses(read(zip, e), queue);
+					else if (entry.endsWith(".properties") || entry.endsWith(".xml")) {
+						Matcher m = CLASS_NAME.matcher(read(zip, e));
+						while (m.find())
+							queue.add(m.group().replace('.', '/'));
+					}
+				}
+			}
+			for (String root : roots)
+				queue.add(root.replace('.', '/'));
+			for (String name : classes.keySet())
+				if (isKept(name) || isAlwaysKept(name + CLASS))
+					queue.add(name);
+			// fxml package imports can only be expanded once all classes are known
+			for (String name : new ArrayList<>(queue))
+				if (name.endsWith("/*")) {
+					String pkg = name.substring(0, name.length() - 1);
+					for (String c : classes.keySet())
+						if (c.startsWith(pkg) && c.indexOf('/', pkg.length()) < 0)
+							queue.add(c);
+				}
+			while (!queue.isEmpty()) {
+				String name = queue.poll();
+				ZipFile zip = classes.get(name);
+				if (zip == null || !kept.add(name))
+					continue;
+				try (InputStream is = zip.getInputStream(zip.getEntry(name + CLASS))) {
+					for (String ref : ClassReferences.of(is.readAllBytes()))
+						if (classes.containsKey(ref) && !kept.contains(ref))
+							queue.add(ref);
+				} catch (IOException e) {
+					// kept, but its references are unknown
+					log.warning("Cannot read " + name + CLASS + " in " + zip.getName() + ": " + e.getMessage());
+				}
+			}
+			log.fine(kept.size() + " classes reachable out of " + classes.size());
+			removed = new HashSet<>(classes.keySet());
+			removed.removeAll(kept);
+		} finally {
+			for (ZipFile zip : zips)
+				zip.close();
+		}
+		Set<String> entries = new HashSet<>();
+		for (String name : kept)
+			entries.add(name + CLASS);
+		return entries;
+	}
+
+	/**
+	 * @return the classes (internal names, e.g. {@code a/b/C}) found unreachable by
+	 *         the last call to {@link #reachable(List)}
+	 */
+	public Set<String> removed() {
+		return removed;
+	}
+
+	private static String read(ZipFile zip, ZipEntry e) throws IOException {
+		try (InputStream is = zip.getInputStream(e)) {
+			return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	// the controllers of an fxml file and the classes it imports (a/b/* for
+	// package imports)
+	private static void fxmlClasses(String fxml, Collection<String> names) {
+		Matcher m = FXML_CONTROLLER.matcher(fxml);
+		while (m.find())
+			names.add(m.group(1).replace('.', '/'));
+		m = FXML_IMPORT.matcher(fxml);
+		while (m.find())
+			names.add(m.group(1).replace('.', '/'));
+	}
+
+}
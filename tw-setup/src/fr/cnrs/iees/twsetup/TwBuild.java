@@ -0,0 +1,989 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import jdk.jfr.Recording;
+
+import au.edu.anu.omhtk.util.FileUtilities;
+import au.edu.anu.twcore.project.Project;
+
+/**
+ * Builds the 3Worlds jars from a program: version bump, dependency resolution,
+ * packing and reporting, as {@link TwSetup#main(String[])} does from the command
+ * line, but without prompting, without exiting and without a new JVM per build.
+ * Options are set by chained setters, {@link #run()} returns what was built as a
+ * {@link Result} and failures are thrown.
+ * 
+ * <pre>
+ * TwBuild.Result r = new TwBuild().setIncremental(true).setLayered(true).run();
+ * </pre>
+ * 
+ * Successive builds in the same JVM share their ivy session (cf.
+ * {@link IvySession}). Builds write to the same 3Worlds directory, so they are
+ * run one at a time.
+ *
+ */
+public class TwBuild {
+
+	/**
+	 * the version number to increase before building
+	 */
+	public enum Increment {
+		BUILD, MINOR, MAJOR
+	}
+
+	/**
+	 * What a build wrote
+	 */
+	public static class Result {
+		private String version = null;
+		private File jar = null;
+		private boolean skipped = false;
+		private int reusedJars = 0;
+		private int removedClasses = 0;
+		private EntryIndex entries = null;
+		private List<File> layers = new ArrayList<>();
+		private List<File> launchers = new ArrayList<>();
+		private List<String> thirdPartyLibraries = new ArrayList<>();
+		private List<String> threeWorldsLibraries = new ArrayList<>();
+		private Map<String, CompressionPolicy.Stats> compressionStats = new LinkedHashMap<>();
+		private Map<File, String> hashes = new LinkedHashMap<>();
+		private File patch = null;
+		private JarDelta delta = null;
+		private File zip = null;
+		private List<PhaseTimer.Phase> phases = new ArrayList<>();
+
+		/**
+		 * @return the version written in the manifest, e.g. {@code 0.1.2}
+		 */
+		public String version() {
+			return version;
+		}
+
+		/**
+		 * @return {@code tw-dep.jar}
+		 */
+		public File jar() {
+			return jar;
+		}
+
+		/**
+		 * @return true if the jar was up to date and not rewritten
+		 */
+		public boolean skipped() {
+			return skipped;
+		}
+
+		/**
+		 * @return the number of jars copied from the previous build in incremental
+		 *         mode
+		 */
+		public int reusedJars() {
+			return reusedJars;
+		}
+
+		/**
+		 * @return the number of unreachable classes dropped when shrinking
+		 */
+		public int removedClasses() {
+			return removedClasses;
+		}
+
+		/**
+		 * @return the entries of the jar, with duplicates and conflicts, or null if it
+		 *         was not rewritten
+		 */
+		public EntryIndex entries() {
+			return entries;
+		}
+
+		/**
+		 * @return the layers in layered mode
+		 */
+		public List<File> layers() {
+			return layers;
+		}
+
+		/**
+		 * @return modelMaker.jar and modelRunner.jar, if written
+		 */
+		public List<File> launchers() {
+			return launchers;
+		}
+
+		/**
+		 * @return the file names of the third party libraries packed, sorted
+		 */
+		public List<String> thirdPartyLibraries() {
+			return thirdPartyLibraries;
+		}
+
+		/**
+		 * @return the file names of the 3Worlds libraries packed, sorted
+		 */
+		public List<String> threeWorldsLibraries() {
+			return threeWorldsLibraries;
+		}
+
+		/**
+		 * @return the compression statistics of every jar written, by jar name
+		 */
+		public Map<String, CompressionPolicy.Stats> compressionStats() {
+			return compressionStats;
+		}
+
+		/**
+		 * @return the SHA-256 of the jars in reproducible mode
+		 */
+		public Map<File, String> hashes() {
+			return hashes;
+		}
+
+		/**
+		 * @return the patch from the previous jar, or null if none was written
+		 */
+		public File patch() {
+			return patch;
+		}
+
+		/**
+		 * @return what the patch contains, or null if none was written
+		 */
+		public JarDelta delta() {
+			return delta;
+		}
+
+		/**
+		 * @return the distribution zip, or null if none was written
+		 */
+		public File zip() {
+			return zip;
+		}
+
+		/**
+		 * @return the timed phases of the build
+		 */
+		public List<PhaseTimer.Phase> phases() {
+			return phases;
+		}
+	}
+
+	// version management
+	private static final String workDir = System.getProperty("user.dir") + File.separator + "src";
+	private static final String packageDir = TwSetup.class.getPackage().getName().replace('.', File.separatorChar);
+	private static final String DOT = ".";
+	// loaded by name at startup (toolkit, platform, pipelines, skins): invisible to
+	// the class reference graph
+	private static final List<String> SHRINK_KEEP_RULES = List.of("au.edu.anu.**", "fr.cnrs.iees.**",
+			"com.sun.glass.**", "com.sun.prism.**", "com.sun.javafx.**", "javafx.**");
+	// where a headless launch of a shrunk jar starts, besides the main classes
+	private static final List<String> STARTUP_CLASSES = List.of("com.sun.javafx.tk.quantum.QuantumToolkit",
+			"com.sun.glass.ui.gtk.GtkPlatformFactory", "com.sun.glass.ui.win.WinPlatformFactory",
+			"com.sun.glass.ui.mac.MacPlatformFactory", "com.sun.prism.es2.ES2Pipeline", "com.sun.prism.d3d.D3DPipeline",
+			"com.sun.prism.sw.SWPipeline", "javafx.scene.control.skin.ButtonSkin");
+
+	// the ivy configuration and parsed descriptors, kept between builds
+	private static final IvySession session = new IvySession();
+
+	private File versionFile = Paths.get(workDir, packageDir, "tw-jar-version.txt").toFile();
+	private Increment increment = null;
+	private boolean zip = false;
+	private boolean incremental = false;
+	private int threads = ParallelPacker.defaultThreads();
+	private boolean recompress = false;
+	private CompressionPolicy compressionPolicy = new CompressionPolicy();
+	private boolean cached = false;
+	private DependencySolver.RetrieveMode retrieveMode = DependencySolver.RetrieveMode.COPY;
+	private int downloadThreads = 1;
+	private String remoteRoot = null;
+	private DependencySolver.LockMode lockMode = DependencySolver.LockMode.NONE;
+	private DependencySolver.SettingsProfile settingsProfile = DependencySolver.SettingsProfile.DEFAULT;
+	private File settingsFile = null;
+	private String cacheTtl = null;
+	private boolean localFastPath = true;
+	private File jfrFile = null;
+	private boolean shrink = false;
+	private File keepFile = null;
+	private boolean layered = false;
+	private boolean cds = false;
+	private boolean ordered = false;
+	private File orderFile = null;
+	private boolean delta = false;
+	private boolean reproducible = false;
+	private boolean launchers = false;
+	private PrintStream out = System.out;
+	// set while watching: the resolution directory is kept between rebuilds
+	private boolean watching = false;
+	// kept between the rebuilds of a watch session: creating a solver wipes the
+	// resolution directory when not cached
+	private DependencySolver solver = null;
+
+	/**
+	 * @param versionFile where the version numbers are kept (default:
+	 *                    {@code src/fr/cnrs/iees/twsetup/tw-jar-version.txt})
+	 */
+	public TwBuild setVersionFile(File versionFile) {
+		this.versionFile = versionFile;
+		return this;
+	}
+
+	/**
+	 * @param increment the version number to increase, or null to build the
+	 *                  current version
+	 */
+	public TwBuild setIncrement(Increment increment) {
+		this.increment = increment;
+		return this;
+	}
+
+	/**
+	 * @param zip if true, also write the distribution zip
+	 */
+	public TwBuild setZip(boolean zip) {
+		this.zip = zip;
+		return this;
+	}
+
+	/**
+	 * @param incremental if true, only repack the libraries that changed since the
+	 *                    last build
+	 */
+	public TwBuild setIncremental(boolean incremental) {
+		this.incremental = incremental;
+		return this;
+	}
+
+	/**
+	 * @param threads the number of compression threads
+	 */
+	public TwBuild setThreads(int threads) {
+		this.threads = threads;
+		return this;
+	}
+
+	/**
+	 * @param recompress if true, recompress dependencies instead of copying their
+	 *                   compressed entries
+	 */
+	public TwBuild setRecompress(boolean recompress) {
+		this.recompress = recompress;
+		return this;
+	}
+
+	/**
+	 * @param compressionPolicy how entries are compressed depending on their
+	 *                          content
+	 */
+	public TwBuild setCompressionPolicy(CompressionPolicy compressionPolicy) {
+		this.compressionPolicy = compressionPolicy;
+		return this;
+	}
+
+	/**
+	 * @param cached if true, reuse the previous dependency resolution if nothing
+	 *               changed
+	 */
+	public TwBuild setCached(boolean cached) {
+		this.cached = cached;
+		solver = null;
+		return this;
+	}
+
+	/**
+	 * @param retrieveMode how to get dependencies from the ivy cache
+	 */
+	public TwBuild setRetrieveMode(DependencySolver.RetrieveMode retrieveMode) {
+		this.retrieveMode = retrieveMode;
+		return this;
+	}
+
+	/**
+	 * @param downloadThreads the number of concurrent downloads
+	 */
+	public TwBuild setDownloadThreads(int downloadThreads) {
+		this.downloadThreads = downloadThreads;
+		return this;
+	}
+
+	/**
+	 * @param remoteRoot the maven repository to use instead of maven central, or
+	 *                   null
+	 */
+	public TwBuild setRemoteRoot(String remoteRoot) {
+		this.remoteRoot = remoteRoot;
+		return this;
+	}
+
+	/**
+	 * @param lockMode how to use the lock file
+	 */
+	public TwBuild setLockMode(DependencySolver.LockMode lockMode) {
+		this.lockMode = lockMode;
+		return this;
+	}
+
+	/**
+	 * @param settingsProfile which ivy settings to generate
+	 */
+	public TwBuild setSettingsProfile(DependencySolver.SettingsProfile settingsProfile) {
+		this.settingsProfile = settingsProfile;
+		return this;
+	}
+
+	/**
+	 * @param settingsFile the ivy settings file to use instead of the generated
+	 *                     one, or null
+	 */
+	public TwBuild setSettingsFile(File settingsFile) {
+		this.settingsFile = settingsFile;
+		return this;
+	}
+
+	/**
+	 * @param cacheTtl how long the cached profile trusts dynamic revisions, or null
+	 *                 for the default
+	 */
+	public TwBuild setCacheTtl(String cacheTtl) {
+		this.cacheTtl = cacheTtl;
+		return this;
+	}
+
+	/**
+	 * @param localFastPath false to resolve the local 3Worlds libraries with ivy
+	 *                      too, cf. {@link DependencySolver#setLocalFastPath(boolean)}
+	 */
+	public TwBuild setLocalFastPath(boolean localFastPath) {
+		this.localFastPath = localFastPath;
+		return this;
+	}
+
+	/**
+	 * @param jfrFile the flight recorder file where the phases are recorded, or
+	 *                null
+	 */
+	public TwBuild setJfrFile(File jfrFile) {
+		this.jfrFile = jfrFile;
+		return this;
+	}
+
+	/**
+	 * @param shrink if true, only pack the classes reachable from ModelMaker and
+	 *               ModelRunner
+	 */
+	public TwBuild setShrink(boolean shrink) {
+		this.shrink = shrink;
+		return this;
+	}
+
+	/**
+	 * @param keepFile keep rules for shrinking, or null. Implies shrinking.
+	 */
+	public TwBuild setKeepFile(File keepFile) {
+		this.keepFile = keepFile;
+		if (keepFile != null)
+			shrink = true;
+		return this;
+	}
+
+	/**
+	 * @param layered if true, pack third party libraries and javafx into separate
+	 *                jars
+	 */
+	public TwBuild setLayered(boolean layered) {
+		this.layered = layered;
+		return this;
+	}
+
+	/**
+	 * @param cds if true, also generate a class data sharing archive
+	 */
+	public TwBuild setCds(boolean cds) {
+		this.cds = cds;
+		return this;
+	}
+
+	/**
+	 * @param ordered if true, write classes in startup loading order
+	 */
+	public TwBuild setOrdered(boolean ordered) {
+		this.ordered = ordered;
+		return this;
+	}
+
+	/**
+	 * @param orderFile the class list giving the loading order, or null. Implies
+	 *                  ordering.
+	 */
+	public TwBuild setOrderFile(File orderFile) {
+		this.orderFile = orderFile;
+		if (orderFile != null)
+			ordered = true;
+		return this;
+	}
+
+	/**
+	 * @param delta if true, also write a patch from the previous jar
+	 */
+	public TwBuild setDelta(boolean delta) {
+		this.delta = delta;
+		return this;
+	}
+
+	/**
+	 * @param reproducible if true, the jars only depend on their inputs
+	 */
+	public TwBuild setReproducible(boolean reproducible) {
+		this.reproducible = reproducible;
+		return this;
+	}
+
+	/**
+	 * @param launchers if true, also write modelMaker.jar and modelRunner.jar
+	 */
+	public TwBuild setLaunchers(boolean launchers) {
+		this.launchers = launchers;
+		return this;
+	}
+
+	/**
+	 * @param out where progress and reports are printed (default:
+	 *            {@code System.out})
+	 */
+	public TwBuild setOutput(PrintStream out) {
+		this.out = out;
+		return this;
+	}
+
+	/**
+	 * @return the major, minor and build numbers of the version file, all zero if
+	 *         there is none
+	 */
+	private int[] readVersion() throws IOException {
+		int[] v = new int[3];
+		if (versionFile.exists())
+			try (BufferedReader fr = new BufferedReader(new FileReader(versionFile))) {
+				String line = fr.readLine();
+				while (line != null) {
+					if (line.startsWith("MAJOR"))
+						v[0] = Integer.valueOf(line.split("=")[1]);
+					if (line.startsWith("MINOR"))
+						v[1] = Integer.valueOf(line.split("=")[1]);
+					if (line.startsWith("BUILD"))
+						v[2] = Integer.valueOf(line.split("=")[1]);
+					line = fr.readLine();
+				}
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid version file " + versionFile, e);
+			}
+		return v;
+	}
+
+	private int[] increased(int[] v) {
+		int[] w = v.clone();
+		if (increment == Increment.MAJOR) {
+			w[0]++;
+			w[1] = 0;
+			w[2] = 0;
+		} else if (increment == Increment.MINOR) {
+			w[1]++;
+			w[2] = 0;
+		} else if (increment == Increment.BUILD)
+			w[2]++;
+		return w;
+	}
+
+	private static String version(int[] v) {
+		return v[0] + DOT + v[1] + DOT + v[2];
+	}
+
+	/**
+	 * @return the version of the last build, as read in the version file
+	 */
+	public String previousVersion() throws IOException {
+		return version(readVersion());
+	}
+
+	/**
+	 * @return the version the next build will have
+	 */
+	public String version() throws IOException {
+		return version(increased(readVersion()));
+	}
+
+	private void writeVersion(int[] v) throws IOException {
+		try (BufferedWriter fw = new BufferedWriter(new FileWriter(versionFile))) {
+			fw.write("//GENERATED - DO NOT EDIT THIS FILE");
+			fw.newLine();
+			fw.write("MAJOR=" + v[0]);
+			fw.newLine();
+			fw.write("MINOR=" + v[1]);
+			fw.newLine();
+			fw.write("BUILD=" + v[2]);
+			fw.newLine();
+		}
+	}
+
+	private static File buildTwApplicationIvyFile() throws IOException {
+		String ivyFile = "<ivy-module version=\"2.0\"\n"
+				+ "		xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n"
+				+ "		xmlns:m=\"http://maven.apache.org/POM/4.0.0\"\n"
+				+ "		xsi:noNamespaceSchemaLocation=\"http://ant.apache.org/ivy/schemas/ivy.xsd\">\n" + "\n"
+				+ "	<info	organisation=\"fr.cnrs.iees.tw-setup\"\n" + "			module=\"tw-setup\"\n"
+				+ "			revision=\"0.0.1\"\n" + "			status=\"integration\">\n"
+				+ "		<license name=\"gpl3\" url=\"https://www.gnu.org/licenses/gpl-3.0.txt\"/>\n"
+				+ "		<description>This module brings together all components required for 3Worlds including archetype</description>\n"
+				+ "	</info>\n" + "\n" + "	<configurations>\n" + "		<conf name=\"java library\"/>\n"
+				+ "	</configurations>\n" + "\n" + "	<publications>\n" + "		<artifact type=\"jar\" ext=\"jar\">\n"
+				+ "			<conf name=\"java library\"/>\n" + "		</artifact>\n" + "	</publications>\n" + "\n"
+				+ "	<dependencies>\n"
+				+ "		<dependency org=\"au.edu.anu.tw-uifx\" name=\"tw-uifx\" rev=\"[0.3.12,)\"/>\n"
+				+ "	</dependencies>\n" + "\n" + "</ivy-module>\n" + "";
+		File outf = new File("bidon.xml");
+		try (PrintWriter writer = new PrintWriter(outf)) {
+			writer.print(ivyFile);
+		}
+		return outf;
+	}
+
+	private static String megabytes(File f) {
+		return new DecimalFormat("#.##").format(f.length() / 1048576.0);
+	}
+
+	/**
+	 * Bumps the version if required, then resolves the dependencies and writes the
+	 * jars (and the patch and zip if required).
+	 * 
+	 * @return what was built
+	 * @throws IOException              if the version file cannot be read or
+	 *                                  written, if no dependency is found or if a
+	 *                                  jar cannot be written
+	 * @throws IllegalArgumentException if options are incompatible
+	 */
+	public Result run() throws IOException {
+		// the reachable classes of a layer cannot be known from the layer alone
+		if (layered && shrink)
+			throw new IllegalArgumentException("Layered jars cannot be shrunk");
+		synchronized (TwBuild.class) {
+			int[] oldVersion = readVersion();
+			int[] newVersion = increased(oldVersion);
+			String oldv = version(oldVersion);
+			String version = version(newVersion);
+			String os = System.getProperty("os.name")/*.toLowerCase()*/;
+			os += "-java-" + System.getProperty("java.version") + " ";
+			// both manifests will have os - tw.jar doesnt need this but leave for now for debugging.
+			String zipFileName = null;
+			if (zip)
+				zipFileName = Project.TW_HOME + "-" + os + DOT + version + DOT + "zip";
+			out.println((increment == null ? "Regenerating '" : "Generating '") + Project.TW_DEP_JAR + "' version "
+					+ os + DOT + version + (zip ? " and packing it into '" + zipFileName + "'" : ""));
+			// save new version into version file
+			writeVersion(newVersion);
+
+			// now do the real work
+			PhaseTimer.reset();
+			Recording recording = null;
+			if (jfrFile != null) {
+				recording = new Recording();
+				recording.enable(PhaseEvent.class);
+				recording.setDestination(jfrFile.toPath());
+				recording.start();
+			}
+			try {
+				out.println("Setting up local 3Worlds environment:");
+				out.println("Creating the '" + Project.TW_HOME + "' directory");
+				// the previous jar is deleted or overwritten by packing
+				File depJar = new File(Project.TW_HOME + File.separator + Project.TW_DEP_JAR);
+				File previousJar = new File(depJar.getPath() + ".previous");
+				if (delta && depJar.exists())
+					Files.copy(depJar.toPath(), previousJar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				// Window 10 means you get Windows 10.1.0.1?
+				// a reproducible manifest must not depend on the build machine
+				String majorVersion = (reproducible ? "" : os) /*+ DOT*/ + Integer.toString(newVersion[0]);
+				Result result = pack(majorVersion, Integer.toString(newVersion[1]), Integer.toString(newVersion[2]));
+				result.version = version;
+				if (delta && previousJar.exists()) {
+					File patch = new File(Project.TW_HOME + File.separator + Project.TW_DEP_JAR.replace(".jar", "")
+							+ "-" + oldv + "-" + version + ".jardelta");
+					try (PhaseTimer.Phase phase = PhaseTimer.start("delta")) {
+						JarDelta d = JarDelta.diff(previousJar, depJar, patch);
+						phase.addEntries(d.added() + d.changed()).addBytes(patch.length());
+						result.patch = patch;
+						result.delta = d;
+						out.println("Patch from version " + oldv + " written to " + patch + ": " + d + ", "
+								+ patch.length() + " bytes instead of " + depJar.length());
+					} catch (IOException e) {
+						out.println("No patch written: " + e.getMessage());
+					} finally {
+						previousJar.delete();
+					}
+				}
+				// the resolution cache is kept for the next run
+				if (!cached && !watching) {
+					FileUtilities.deleteFileTree(new File(DependencySolver.destPath));
+					solver = null;
+				}
+				if (zip) {
+					out.println("Writing zip file '" + zipFileName + "' for distribution");
+					result.zip = zipDistribution(zipFileName);
+				}
+				out.println("------------- TIMING --------------------");
+				out.print(PhaseTimer.summary());
+				result.phases.addAll(PhaseTimer.phases());
+				return result;
+			} finally {
+				if (recording != null) {
+					recording.stop();
+					recording.close();
+					out.println("Flight recording written to " + jfrFile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds, then rebuilds the jars every time 3Worlds libraries are published in
+	 * the local ivy repository, until the thread is interrupted. Rebuilds are
+	 * incremental: only the changed libraries are read again. A rebuild failure is
+	 * reported and the next publication awaited.
+	 * 
+	 * @param rebuilt called after every rebuild
+	 * @throws IOException if the first build fails or the repository cannot be
+	 *                     watched
+	 */
+	public void watch(Consumer<Result> rebuilt) throws IOException {
+		watching = true;
+		try {
+			String[] v = version().split("\\.");
+			run();
+			incremental = true;
+			File repository = DependencySolver.localRepository;
+			try (LibraryWatcher watcher = new LibraryWatcher(repository.toPath(), LibraryWatcher.DEFAULT_QUIET)) {
+				while (true) {
+					out.println("Watching " + repository + " for published libraries (Ctrl-C to stop)");
+					Set<String> modules = LibraryWatcher.modules(watcher.awaitChanges());
+					out.println("Published: " + (modules.isEmpty() ? "(unknown)" : String.join(", ", modules)));
+					synchronized (TwBuild.class) {
+						PhaseTimer.reset();
+						long start = System.nanoTime();
+						try {
+							String os = System.getProperty("os.name") + "-java-" + System.getProperty("java.version")
+									+ " ";
+							Result result = pack((reproducible ? "" : os) + v[0], v[1], v[2]);
+							result.version = String.join(DOT, v);
+							result.phases.addAll(PhaseTimer.phases());
+							out.println(Project.TW_DEP_JAR + " rebuilt in "
+									+ new DecimalFormat("#.##").format((System.nanoTime() - start) / 1e9) + " s");
+							rebuilt.accept(result);
+						} catch (IOException e) {
+							out.println(Project.TW_DEP_JAR + " not rebuilt: " + e.getMessage());
+						}
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		} finally {
+			watching = false;
+		}
+	}
+
+	/**
+	 * packs all what's needed to run 3worlds in a single jar, puts it in a zip file
+	 * under the 3w dir: 3w/tw.jar
+	 */
+	private Result pack(String major, String minor, String build) throws IOException {
+		Result result = new Result();
+		ThreeWorldsJar twDepPacker = new ThreeWorldsJar(major, minor, build);
+		twDepPacker.setIncremental(incremental);
+		twDepPacker.setThreads(threads);
+		twDepPacker.setRecompress(recompress);
+		twDepPacker.setCompressionPolicy(compressionPolicy);
+		twDepPacker.setReproducible(reproducible);
+		// a reproducible jar is up to date if its inputs did not change
+		twDepPacker.setSkipUnchanged(reproducible);
+		TreeShaker shaker = null;
+		if (shrink) {
+			shaker = new TreeShaker(List.of(TwSetup.MODELMAKER_CLASS, TwSetup.MODELRUNNER_CLASS));
+			// 3Worlds instantiates its own classes by name from configuration files, and
+			// javafx its toolkit; service providers are kept by the tree shaker
+			for (String rule : SHRINK_KEEP_RULES)
+				shaker.addKeepRule(rule);
+			if (keepFile != null)
+				shaker.addKeepRules(keepFile);
+			twDepPacker.setTreeShaker(shaker);
+		}
+		String twDepFileName = Project.TW_DEP_JAR;
+		// main class in manifest
+		twDepPacker.setMainClass(TwSetup.MODELMAKER_CLASS);
+		// one jar per application, written in the same pass
+		if (launchers) {
+			result.launchers.add(new File(Project.TW_HOME + File.separator + TwSetup.MODELMAKER_JAR));
+			result.launchers.add(new File(Project.TW_HOME + File.separator + TwSetup.MODELRUNNER_JAR));
+			twDepPacker.addLauncher(result.launchers.get(0), TwSetup.MODELMAKER_CLASS, name -> true);
+			twDepPacker.addLauncher(result.launchers.get(1), TwSetup.MODELRUNNER_CLASS, name -> true);
+		}
+		// the inputs of the stable layers of the layered mode
+		Map<String, List<String>> layers = new LinkedHashMap<>();
+		layers.put(TwSetup.LIB_DEP_JAR, new ArrayList<>());
+		layers.put(TwSetup.FX_DEP_JAR, new ArrayList<>());
+		// get all dependencies of all 3w libraries
+		// and pack them in a single jar
+		// this puts in everything since tw-uifx depends on all libraries
+		out.println("Packing 3worlds files and dependencies into " + twDepFileName);
+		List<String> other = result.thirdPartyLibraries;
+		List<String> tw = result.threeWorldsLibraries;
+		if (solver == null)
+			solver = new DependencySolver(buildTwApplicationIvyFile().toString(), cached);
+		solver.setSession(session);
+		solver.setRetrieveMode(retrieveMode);
+		solver.setDownloadThreads(downloadThreads);
+		if (remoteRoot != null)
+			solver.setRemoteRoot(remoteRoot);
+		solver.setLock(Paths.get(workDir, packageDir, "tw-dep.lock").toFile(), lockMode);
+		solver.setSettingsProfile(settingsProfile);
+		solver.setSettingsFile(settingsFile);
+		if (cacheTtl != null)
+			solver.setCacheTtl(cacheTtl);
+		solver.setLocalFastPath(localFastPath);
+		List<String> jars = new ArrayList<>(solver.getJars());
+		if (!solver.getLockProblems().isEmpty())
+			throw new IOException("Dependencies do not match the lock file:\n"
+					+ String.join("\n", solver.getLockProblems()));
+		if (jars.isEmpty())
+			throw new IOException("No dependencies found");
+		// the same order whatever the retrieve mode and the file system
+		if (reproducible)
+			jars.sort(Comparator.comparing(s -> new File(s).getName()));
+		for (String s : jars) {
+			String name = new File(s).getName();
+			boolean isTw = s.contains("au.") || s.contains("fr.");
+			if (!layered || isTw)
+				twDepPacker.addJar(s);
+			else
+				layers.get(name.startsWith("javafx") ? TwSetup.FX_DEP_JAR : TwSetup.LIB_DEP_JAR).add(s);
+			if (isTw)
+				tw.add(name);
+			else if (!other.contains(name))
+				other.add(name);
+		}
+		List<File> layerFiles = result.layers;
+		Map<String, CompressionPolicy.Stats> compressionStats = result.compressionStats;
+		List<File> rebuiltLayers = new ArrayList<>();
+		if (layered) {
+			out.println("packing layers...");
+			for (Map.Entry<String, List<String>> e : layers.entrySet()) {
+				if (e.getValue().isEmpty())
+					continue;
+				// no version, so that layers are only rebuilt when their content changes
+				ThreeWorldsJar layer = new ThreeWorldsJar();
+				layer.setThreads(threads);
+				layer.setRecompress(recompress);
+				layer.setCompressionPolicy(compressionPolicy);
+				layer.setReproducible(reproducible);
+				layer.setSkipUnchanged(true);
+				for (String s : e.getValue())
+					layer.addJar(s);
+				File layerFile = new File(Project.TW_HOME + File.separator + e.getKey());
+				layer.pack(layerFile);
+				layerFiles.add(layerFile);
+				if (!layer.skipped()) {
+					rebuiltLayers.add(layerFile);
+					compressionStats.put(e.getKey(), layer.compressionStats());
+				}
+				// the layers are found next to tw-dep.jar
+				twDepPacker.addDependencyOnJar(e.getKey());
+				out.println(e.getKey() + (layer.skipped() ? " unchanged" : " rebuilt"));
+			}
+		}
+
+		out.println("packing jar...");
+		// write jar
+		// the previous jar is replaced only when the new one is complete
+		File depJarFile = new File(Project.TW_HOME + File.separator + twDepFileName);
+		twDepPacker.pack(depJarFile);
+		result.jar = depJarFile;
+		result.skipped = twDepPacker.skipped();
+		result.reusedJars = twDepPacker.reusedJars();
+		result.removedClasses = twDepPacker.removedClasses();
+		result.entries = twDepPacker.entries();
+		if (twDepPacker.skipped())
+			out.println(twDepFileName + " unchanged");
+		if (incremental && !shrink)
+			out.println(twDepPacker.reusedJars() + " unchanged jars copied from previous " + twDepFileName);
+		if (shrink)
+			out.println(twDepPacker.removedClasses() + " unreachable classes removed");
+		if (shrink && !twDepPacker.skipped()) {
+			out.println("checking startup of the shrunk jar...");
+			List<String> roots = new ArrayList<>(List.of(TwSetup.MODELMAKER_CLASS, TwSetup.MODELRUNNER_CLASS));
+			roots.addAll(STARTUP_CLASSES);
+			Set<String> missing;
+			try (PhaseTimer.Phase phase = PhaseTimer.start("shrink check")) {
+				missing = CdsTraining.check(depJarFile, roots, new File(depJarFile.getPath() + ".check.log"));
+				phase.addBytes(depJarFile.length());
+			}
+			// classes absent from the inputs too are not the tree shaker's fault
+			missing.retainAll(shaker.removed());
+			if (!missing.isEmpty())
+				throw new IOException("The shrunk " + twDepFileName + " misses " + missing.size()
+						+ " classes needed at startup: " + String.join(", ", missing).replace('/', '.')
+						+ " - add keep rules for them with -keep");
+		}
+		if (twDepPacker.compressionStats() != null)
+			compressionStats.put(twDepFileName, twDepPacker.compressionStats());
+		if (!compressionStats.isEmpty()) {
+			out.println("------------- COMPRESSION -------------");
+			out.println("policy: " + compressionPolicy);
+			for (Map.Entry<String, CompressionPolicy.Stats> e : compressionStats.entrySet()) {
+				out.println(e.getKey() + ":");
+				out.print(e.getValue().report(compressionPolicy));
+			}
+		}
+		EntryIndex entries = twDepPacker.entries();
+		if (entries != null) {
+			out.println(entries.identicalDuplicates() + " identical duplicate entries skipped");
+			if (!entries.conflicts().isEmpty()) {
+				out.println("------------- CONFLICTS ---------------");
+				out.println(entries.conflicts().size() + " entries differ between libraries - first one packed:");
+				out.print(entries.conflictReport());
+			}
+		}
+		if (ordered) {
+			out.println("ordering classes by loading order...");
+			try (PhaseTimer.Phase phase = PhaseTimer.start("startup order")) {
+				List<String> classes = orderFile != null ? StartupOrder.read(orderFile)
+						: StartupOrder.record(depJarFile, List.of(TwSetup.MODELMAKER_CLASS, TwSetup.MODELRUNNER_CLASS));
+				// unchanged layers are left as they are
+				List<File> reordered = new ArrayList<>(rebuiltLayers);
+				reordered.add(depJarFile);
+				for (File f : reordered) {
+					int moved = StartupOrder.reorder(f, classes);
+					phase.addEntries(moved).addBytes(f.length());
+					out.println(moved + " classes of " + f.getName() + " moved to the front");
+				}
+			} catch (IOException e) {
+				out.println("Entries not reordered: " + e.getMessage());
+			}
+		}
+		// set executable - after reordering, which replaces the file
+		depJarFile.setExecutable(true, false);
+		if (reproducible) {
+			// content hashes, usable as cache keys downstream
+			List<File> hashed = new ArrayList<>(layerFiles);
+			hashed.add(depJarFile);
+			for (File f : hashed) {
+				String hash = JarBuildIndex.sha256(f);
+				Files.write(Paths.get(f.getPath() + ".sha256"),
+						(hash + "  " + f.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+				result.hashes.put(f, hash);
+				out.println(f.getName() + " SHA-256: " + hash);
+			}
+		}
+		if (cds) {
+			out.println("generating class data sharing archive...");
+			CdsArchive archive = new CdsArchive(depJarFile,
+					List.of(TwSetup.MODELMAKER_CLASS, TwSetup.MODELRUNNER_CLASS));
+			try {
+				File archiveFile = CdsArchive.archiveFile(depJarFile);
+				out.println(archiveFile.getName() + (archive.generate() ? " generated" : " unchanged")
+						+ " - use it with: java -XX:SharedArchiveFile=" + archiveFile.getPath() + " -jar "
+						+ depJarFile.getPath());
+			} catch (IOException e) {
+				out.println("No class data sharing archive: " + e.getMessage());
+			}
+		}
+
+		// output to console
+		Collections.sort(other);
+		Collections.sort(tw);
+		out.println("------------- THIRD PARTY ---------------");
+		int count = 0;
+		for (String s : other)
+			out.println(++count + "\t" + s);
+		out.println("------------- 3WORLDS LIBS --------------");
+		count = 0;
+		for (String s : tw)
+			out.println(++count + "\t" + s);
+		out.println("\n" + depJarFile.getName() + " [" + megabytes(depJarFile) + " Mb.]");
+		for (File layerFile : layerFiles)
+			out.println(layerFile.getName() + " [" + megabytes(layerFile) + " Mb.]");
+		for (File launcherFile : result.launchers)
+			out.println(launcherFile.getName() + " [" + megabytes(launcherFile) + " Mb.]");
+		return result;
+	}
+
+	/**
+	 * writes the distribution zip: the jars of the 3worlds directory, and its class
+	 * data sharing archive if any, cf. {@link DistributionZip}
+	 */
+	private File zipDistribution(String zipFileName) throws IOException {
+		String dir = new File(Project.TW_HOME).getName();
+		File zipFile = new File(zipFileName);
+		DistributionZip zip = new DistributionZip(zipFile, threads);
+		if (reproducible)
+			zip.setDosTime(JarPacker.reproducibleTime());
+		List<String> members = new ArrayList<>(List.of(Project.TW_DEP_JAR));
+		if (layered)
+			members.addAll(List.of(TwSetup.LIB_DEP_JAR, TwSetup.FX_DEP_JAR));
+		if (launchers)
+			members.addAll(List.of(TwSetup.MODELMAKER_JAR, TwSetup.MODELRUNNER_JAR));
+		if (cds)
+			members.add(CdsArchive.archiveFile(new File(Project.TW_DEP_JAR)).getName());
+		for (String member : members) {
+			File f = new File(Project.TW_HOME + File.separator + member);
+			if (f.exists())
+				zip.add(f, dir + "/" + member);
+		}
+		zip.write();
+		return zipFile;
+	}
+
+}
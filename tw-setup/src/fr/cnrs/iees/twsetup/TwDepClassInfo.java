@@ -29,50 +29,265 @@
  **************************************************************************/
 package fr.cnrs.iees.twsetup;
 
+import static au.edu.anu.twcore.project.Project.*;
+
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.NumberFormat;
-import java.util.Enumeration;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import au.edu.anu.twcore.project.Project;
+/**
+ * Size analysis of jars: where do the bytes of tw-dep.jar (or of any set of
+ * jars, e.g. the whole ivy cache) come from? Sizes are broken down by library,
+ * package and entry type (extension).
+ * 
+ * Only the central directories are read, memory-mapped, and jars are scanned
+ * in parallel, so that even thousands of jars take a few milliseconds. The
+ * library of an entry is the jar it is found in, except for a jar packed in
+ * incremental mode, whose build index tells which input each entry came from.
+ * 
+ * Arguments: [-top n] [-threads n] [jar or directory]... Without jars, the
+ * tw-dep.jar of the 3Worlds home directory is analysed. Directories are
+ * searched for jars recursively. -top n: number of lines of each breakdown
+ * (default 20) -threads n: number of threads (default: number of cores).
+ *
+ */
+public class TwDepClassInfo {
 
-import static au.edu.anu.twcore.project.Project.*;
+	/**
+	 * Entry counts and sizes, by key (library, package or type)
+	 */
+	public static class Breakdown {
+		// entries, uncompressed size, compressed size
+		private final Map<String, long[]> sizes = new HashMap<>();
 
-public class TwDepClassInfo {
+		void add(String key, long size, long compressedSize) {
+			long[] s = sizes.computeIfAbsent(key, k -> new long[3]);
+			s[0]++;
+			s[1] += size;
+			s[2] += compressedSize;
+		}
 
-	public static void main(String[] args) {
-//		String fn = System.getProperty("user.home") + "/.3w/tw-dep.jar";
-		String fn = Project.TW_HOME+File.pathSeparator+TW_DEP_JAR;
-		File f = new File(fn);
-		long sumClassCompressed = 0;
-		long sumClassUncompressed = 0;
-		JarFile jf;
+		void addAll(Breakdown other) {
+			for (Map.Entry<String, long[]> e : other.sizes.entrySet()) {
+				long[] s = sizes.computeIfAbsent(e.getKey(), k -> new long[3]);
+				for (int i = 0; i < 3; i++)
+					s[i] += e.getValue()[i];
+			}
+		}
+
+		public int size() {
+			return sizes.size();
+		}
+
+		public long entries(String key) {
+			return sizes.getOrDefault(key, new long[3])[0];
+		}
+
+		public long uncompressedSize(String key) {
+			return sizes.getOrDefault(key, new long[3])[1];
+		}
+
+		public long compressedSize(String key) {
+			return sizes.getOrDefault(key, new long[3])[2];
+		}
+
+		/**
+		 * @return the keys, by decreasing compressed size
+		 */
+		public List<String> keys() {
+			List<String> keys = new ArrayList<>(sizes.keySet());
+			keys.sort(Comparator.comparingLong((String k) -> sizes.get(k)[2]).reversed()
+					.thenComparing(Comparator.naturalOrder()));
+			return keys;
+		}
+
+		/**
+		 * @param title the name of the keys
+		 * @param top   the maximal number of lines
+		 * @return a table of the largest keys
+		 */
+		public String report(String title, int top) {
+			NumberFormat nf = NumberFormat.getNumberInstance();
+			long total = 0;
+			for (long[] s : sizes.values())
+				total += s[2];
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%10s%16s%16s%8s  %s\n", "entries", "uncompressed", "compressed", "%", title));
+			List<String> keys = keys();
+			for (String key : keys.subList(0, Math.min(top, keys.size()))) {
+				long[] s = sizes.get(key);
+				sb.append(String.format("%10s%16s%16s%8.1f  %s\n", nf.format(s[0]), nf.format(s[1]), nf.format(s[2]),
+						total == 0 ? 0.0 : 100.0 * s[2] / total, key));
+			}
+			if (keys.size() > top)
+				sb.append("... (" + (keys.size() - top) + " more)\n");
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * The breakdowns of a set of jars
+	 */
+	public static class Analysis {
+		public final Breakdown byLibrary = new Breakdown();
+		public final Breakdown byPackage = new Breakdown();
+		public final Breakdown byType = new Breakdown();
+		private int jars = 0;
+
+		void addAll(Analysis other) {
+			byLibrary.addAll(other.byLibrary);
+			byPackage.addAll(other.byPackage);
+			byType.addAll(other.byType);
+			jars += other.jars;
+		}
+
+		public int jars() {
+			return jars;
+		}
+	}
+
+	/**
+	 * @param name an entry name
+	 * @return the java package of the entry (its directory, with dots)
+	 */
+	static String packageOf(String name) {
+		int slash = name.lastIndexOf('/', name.length() - 2);
+		return slash < 0 ? "(root)" : name.substring(0, slash).replace('/', '.');
+	}
+
+	/**
+	 * @param name an entry name
+	 * @return the entry type: its extension, or "(directory)" or "(none)"
+	 */
+	static String typeOf(String name) {
+		if (name.endsWith("/"))
+			return "(directory)";
+		int dot = name.lastIndexOf('.');
+		if (dot < 0 || dot < name.lastIndexOf('/'))
+			return "(none)";
+		return name.substring(dot + 1).toLowerCase();
+	}
+
+	/**
+	 * Analyses one jar
+	 * 
+	 * @param jar the jar
+	 * @return its breakdowns
+	 * @throws IOException if the jar cannot be read
+	 */
+	public static Analysis analyse(File jar) throws IOException {
+		Analysis result = new Analysis();
+		List<ZipRecord> records;
+		try (FileChannel channel = FileChannel.open(jar.toPath(), StandardOpenOption.READ)) {
+			records = ZipDirectory.read(channel, true).records();
+		}
+		// the inputs of a jar packed in incremental mode
+		String[] library = new String[records.size()];
+		JarBuildIndex index = JarBuildIndex.load(JarPacker.indexFile(jar));
+		if (index != null && index.matches(jar))
+			for (JarBuildIndex.Input input : index.inputs()) {
+				String name = new File(input.path).getName();
+				for (int i = input.first; i < input.first + input.count && i < library.length; i++)
+					library[i] = name;
+			}
+		int i = 0;
+		for (ZipRecord r : records) {
+			String lib = library[i++] != null ? library[i - 1] : jar.getName();
+			result.byLibrary.add(lib, r.getSize(), r.getCompressedSize());
+			result.byType.add(typeOf(r.getName()), r.getSize(), r.getCompressedSize());
+			if (!r.isDirectory())
+				result.byPackage.add(packageOf(r.getName()), r.getSize(), r.getCompressedSize());
+		}
+		result.jars = 1;
+		return result;
+	}
+
+	/**
+	 * Analyses jars in parallel
+	 * 
+	 * @param jars    the jars
+	 * @param threads the number of threads
+	 * @return the merged breakdowns of all the jars
+	 */
+	public static Analysis analyse(List<File> jars, int threads) {
+		Analysis result = new Analysis();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+			Thread t = new Thread(r, "tw-jar-analysis");
+			t.setDaemon(true);
+			return t;
+		});
 		try {
-			// NB: Don't use jar input streams. These will not contain the info required!
-			// Not much use doing the same for .java because they are not all there so
-			// comparison with .class file means nothing.
-			jf = new JarFile(f.getAbsolutePath());
-			Enumeration<JarEntry> e = jf.entries();
-			while (e.hasMoreElements()) {
-				JarEntry je = (JarEntry) e.nextElement();
-				String name = je.getName();
-				if (name.endsWith(".class")) {
-					sumClassCompressed += je.getCompressedSize();
-					sumClassUncompressed += je.getSize();
+			List<Future<Analysis>> futures = new ArrayList<>();
+			for (File jar : jars)
+				futures.add(pool.submit(() -> analyse(jar)));
+			for (int i = 0; i < jars.size(); i++)
+				try {
+					result.addAll(futures.get(i).get());
+				} catch (ExecutionException e) {
+					System.out.println("Skipping " + jars.get(i) + ": " + e.getCause().getMessage());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
 				}
-			}
-		} catch (IOException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
+		} finally {
+			pool.shutdownNow();
 		}
-		System.out.println(fn);
+		return result;
+	}
+
+	public static void main(String[] args) {
+		int top = 20;
+		int threads = ParallelPacker.defaultThreads();
+		List<File> jars = new ArrayList<>();
+		for (int i = 0; i < args.length; i++)
+			try {
+				if (args[i].equals("-top") && i + 1 < args.length)
+					top = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-threads") && i + 1 < args.length)
+					threads = Integer.parseInt(args[++i]);
+				else {
+					File f = new File(args[i]);
+					if (f.isDirectory()) {
+						List<String> found = new ArrayList<>();
+						DependencySolver.recurseDir(f, found);
+						for (String s : found)
+							jars.add(new File(s));
+					} else
+						jars.add(f);
+				}
+			} catch (NumberFormatException e) {
+				System.out.println("Usage: TwDepClassInfo [-top n] [-threads n] [jar or directory]...");
+				System.exit(1);
+			}
+		if (jars.isEmpty())
+			jars.add(new File(TW_HOME + File.separator + TW_DEP_JAR));
+		long start = System.nanoTime();
+		Analysis analysis = analyse(jars, threads);
+		long time = System.nanoTime() - start;
+		NumberFormat nf = NumberFormat.getNumberInstance();
+		System.out.println(jars.size() == 1 ? jars.get(0).getPath() : jars.size() + " jars");
 		System.out.println(
-				"Compressed .class file bytes:\t" + NumberFormat.getNumberInstance().format(sumClassCompressed));
+				"Compressed .class file bytes:\t" + nf.format(analysis.byType.compressedSize("class")));
 		System.out.println(
-				"Uncompressed .class file bytes:\t" + NumberFormat.getNumberInstance().format(sumClassUncompressed));
-
+				"Uncompressed .class file bytes:\t" + nf.format(analysis.byType.uncompressedSize("class")));
+		System.out.println("------------- BY LIBRARY --------------");
+		System.out.print(analysis.byLibrary.report("library", top));
+		System.out.println("------------- BY PACKAGE --------------");
+		System.out.print(analysis.byPackage.report("package", top));
+		System.out.println("------------- BY TYPE -----------------");
+		System.out.print(analysis.byType.report("type", top));
+		System.out.println(analysis.jars() + " jars analysed in " + String.format("%.1f", time / 1e6) + " ms");
 	}
 
 }
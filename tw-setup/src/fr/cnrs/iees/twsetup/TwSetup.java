@@ -30,22 +30,12 @@
 package fr.cnrs.iees.twsetup;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.logging.Level;
-import au.edu.anu.omhtk.util.FileUtilities;
+
 import au.edu.anu.twcore.project.Project;
 import fr.cnrs.iees.omhtk.utils.Logging;
 
@@ -66,347 +56,261 @@ import fr.cnrs.iees.omhtk.utils.Logging;
 // refactored and carefully tested JG 11/3/2022
 public class TwSetup {
 
-	// version management
-	private static final String workDir = System.getProperty("user.dir") + File.separator + "src";
-	private static final String packageDir = TwSetup.class.getPackage().getName().replace('.', File.separatorChar);
-	private static final String DOT = ".";
-
 	// jar names for the 3w applications
 	public static final String MODELRUNNER_JAR = "modelRunner.jar";
 	public static final String MODELMAKER_JAR = "modelMaker.jar";
+	// layers referenced by tw-dep.jar in layered mode
+	public static final String LIB_DEP_JAR = "tw-dep-lib.jar";
+	public static final String FX_DEP_JAR = "tw-dep-fx.jar";
 	// this is supposed to return the root dir of all 3worlds libraries, e.g.
 	// /home/gignoux/git
 	public static final String CODEROOT = Path.of(System.getProperty("user.dir")).getParent().getParent().toString();
 	// NB these two names cannot be extracted from the classes because the classes
 	// are in tw-uifx.
-	private static final String MODELMAKER_CLASS = "au.edu.anu.twuifx.mm.MMmain";
-	@SuppressWarnings("unused")
-	private static final String MODELRUNNER_CLASS = "au.edu.anu.twuifx.mr.MRmain";
-
-	private static File buildTwApplicationIvyFile() {
-		String ivyFile = "<ivy-module version=\"2.0\"\n"
-				+ "		xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n"
-				+ "		xmlns:m=\"http://maven.apache.org/POM/4.0.0\"\n"
-				+ "		xsi:noNamespaceSchemaLocation=\"http://ant.apache.org/ivy/schemas/ivy.xsd\">\n" + "\n"
-				+ "	<info	organisation=\"fr.cnrs.iees.tw-setup\"\n" + "			module=\"tw-setup\"\n"
-				+ "			revision=\"0.0.1\"\n" + "			status=\"integration\">\n"
-				+ "		<license name=\"gpl3\" url=\"https://www.gnu.org/licenses/gpl-3.0.txt\"/>\n"
-				+ "		<description>This module brings together all components required for 3Worlds including archetype</description>\n"
-				+ "	</info>\n" + "\n" + "	<configurations>\n" + "		<conf name=\"java library\"/>\n"
-				+ "	</configurations>\n" + "\n" + "	<publications>\n" + "		<artifact type=\"jar\" ext=\"jar\">\n"
-				+ "			<conf name=\"java library\"/>\n" + "		</artifact>\n" + "	</publications>\n" + "\n"
-				+ "	<dependencies>\n"
-				+ "		<dependency org=\"au.edu.anu.tw-uifx\" name=\"tw-uifx\" rev=\"[0.3.12,)\"/>\n"
-				+ "	</dependencies>\n" + "\n" + "</ivy-module>\n" + "";
-		File outf = new File("bidon.xml");
-		PrintWriter writer;
-		try {
-			writer = new PrintWriter(outf);
-			writer.print(ivyFile);
-			writer.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		}
-		return outf;
-	}
-
-	/**
-	 * Create the 3worlds workspace {@code TW_ROOT = "3w"} and save the 3w jar into
-	 * it.
-	 * 
-	 * @param filename
-	 * @return
-	 */
-	private static File jarFile(String filename) {
-		File file = new File(Project.TW_HOME + File.separator + filename);
-		if (file.exists())
-			file.delete();
-		try {
-			file.createNewFile();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-		return file;
-	}
+	static final String MODELMAKER_CLASS = "au.edu.anu.twuifx.mm.MMmain";
+	static final String MODELRUNNER_CLASS = "au.edu.anu.twuifx.mr.MRmain";
 
 	/**
-	 * packs all what's needed to run 3worlds in a single jar, puts it in a zip file
-	 * under the 3w dir: 3w/tw.jar
+	 * @return false if the user does not want to upgrade
 	 */
-	private static void pack3wAll(String major, String minor, String build) {
-		ThreeWorldsJar twDepPacker = new ThreeWorldsJar(major, minor, build);
-//		ThreeWorldsJar fxDepPacker = new ThreeWorldsJar(major, minor, build);
-		String twDepFileName = Project.TW_DEP_JAR;
-//		String twFxFileName = TW_FX_DEP_JAR;
-		// main class in manifest
-		twDepPacker.setMainClass(MODELMAKER_CLASS);
-//		fxDepPacker.setMainClass("javafx.application.Application"); // doesnt work
-		// get all dependencies of all 3w libraries
-		// and pack them in a single jar
-		// this puts in everything since tw-uifx depends on all libraries
-		System.out.println("Packing 3worlds files and dependencies into " + twDepFileName);
-		List<String> other = new ArrayList<>();
-		List<String> tw = new ArrayList<>();
-		for (String s : new DependencySolver(buildTwApplicationIvyFile().toString()).getJars()) {
-//			if (s.contains("javafx"))
-//				System.out.println("FX: "+s);
-//			if (s.contains("javafx-base") || 
-//				s.contains("javafx-swing") || 
-//				s.contains("javafx-controls") || 
-//				s.contains("javafx-web") || 
-//				s.contains("javafx-graphics") || 
-//				s.contains("javafx-media") ||
-//				s.contains("javafx-fxml")) {
-//				System.out.println("JAVAFX: " + s);
-//				fxDepPacker.addJar(s);
-//			} else
-				twDepPacker.addJar(s);
-			String name = new File(s).getName();
-			if (s.contains("au.") || s.contains("fr."))
-				tw.add(name);
-			else if (!other.contains(name))
-				other.add(name);
-		}
-		// TODO update manifest in dep with fxDep
-//		twDepPacker.addDependencyOnJar("./"+twFxFileName);
-
-		System.out.println("packing jar...");
-		// write jar
-		File depJarFile = jarFile(twDepFileName);
-		twDepPacker.saveJar(depJarFile);
-		// set executable
-		depJarFile.setExecutable(true, false);
-//		File fxDepJarFile = jarFile(twFxFileName);
-//		fxDepPacker.saveJar(fxDepJarFile);
-		
-		
-		// output to console
-		Collections.sort(other);
-		Collections.sort(tw);
-		System.out.println("------------- THIRD PARTY ---------------");
-		int count = 0;
-		for (String s : other)
-			System.out.println(++count + "\t" + s);
-		System.out.println("------------- 3WORLDS LIBS --------------");
-		count = 0;
-		for (String s : tw)
-			System.out.println(++count + "\t" + s);
-		System.out.println("\n" + depJarFile.getName() + " ["
-				+ new DecimalFormat("#.##").format(depJarFile.length() / 1048576.0) + " Mb.]");
-//		System.out.println(fxDepJarFile.getName() + " ["
-//				+ new DecimalFormat("#.##").format(fxDepJarFile.length() / 1048576.0) + " Mb.]\n");
-	}
-
-	// copied from https://www.baeldung.com/java-compress-and-uncompress
-//	private static void zipFile(File fileToZip, String fileName, ZipOutputStream zipOut) throws IOException {
-//		if (fileToZip.isHidden()) {
-//			return;
-//		}
-//		if (fileToZip.isDirectory()) {
-//			if (fileName.endsWith("/")) {
-//				zipOut.putNextEntry(new ZipEntry(fileName));
-//				zipOut.closeEntry();
-//			} else {
-//				zipOut.putNextEntry(new ZipEntry(fileName + "/"));
-//				zipOut.closeEntry();
-//			}
-//			File[] children = fileToZip.listFiles();
-//			for (File childFile : children) {
-//				// added to only store tw.jar
-//				if (childFile.getName().equals(TW_DEP_JAR))
-//					// end
-//					zipFile(childFile, fileName + "/" + childFile.getName(), zipOut);
-//			}
-//			return;
-//		}
-//		FileInputStream fis = new FileInputStream(fileToZip);
-//		ZipEntry zipEntry = new ZipEntry(fileName);
-//		zipOut.putNextEntry(zipEntry);
-//		byte[] bytes = new byte[1024];
-//		int length;
-//		while ((length = fis.read(bytes)) >= 0) {
-//			zipOut.write(bytes, 0, length);
-//		}
-//		fis.close();
-//	}
-
-	// copied & adapted from https://www.baeldung.com/java-compress-and-uncompress
-//	private static void zipDir(String directory, String zipFile) {
-//		try {
-//			FileOutputStream fos = new FileOutputStream(zipFile);
-//			ZipOutputStream zipOut = new ZipOutputStream(fos);
-//			File fileToZip = new File(directory);
-//			zipFile(fileToZip, fileToZip.getName(), zipOut);
-//			zipOut.close();
-//			fos.close();
-//		} catch (IOException e) {
-//			e.printStackTrace();
-//		}
-//	}
-
-	private static void confirmVersionUpgrade(String oldv, String newv) {
+	private static boolean confirmVersionUpgrade(String oldv, String newv) {
 		System.out.print(
 				"Upgrading '" + Project.TW_DEP_JAR + "' from version " + oldv + " to version " + newv.toString() + " (Y/n)? ");
 		try {
 			BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
 			String s = br.readLine();
-			if (s.startsWith("N") || s.startsWith("n")) {
-				System.out.println("Aborting upgrade.");
-				System.exit(0);
-			}
+			if (s.startsWith("N") || s.startsWith("n"))
+				return false;
 		} catch (IOException e1) {
 			e1.printStackTrace();
 		}
+		return true;
 	}
 
 	/**
 	 * Creates the 3w directory and the 3Worlds jar if they do not exist. Can also
 	 * package them in a zip for distribution.
 	 * 
-	 * Arguments: 0, 1 or 2 args. no arg: just regenerate tw.jar into 3w using
+	 * Arguments: 0 or more args. no arg: just regenerate tw.jar into 3w using
 	 * stored version data -build: regenerate tw.jar, increasing build number only
 	 * -minor: regenerate tw.jar, increasing minor number and setting build to zero
 	 * -major: regenerate tw.jar, increasing major number and setting build and
-	 * minor to zero -zip: also make a zip file for distribution
+	 * minor to zero -zip: also make a zip file for distribution -incremental: only
+	 * repack the jars that changed since the previous build -threads n: number of
+	 * compression threads -recompress: recompress dependency entries instead of
+	 * copying them as is -compression policy: how to compress entries depending on
+	 * their content, cf. {@link CompressionPolicy} -uncompressed-classes: store
+	 * classes without compression -cache: reuse the previous dependency resolution if
+	 * nothing changed -retrieve copy|direct|link: how to get dependencies from
+	 * the ivy cache -downloads n: number of concurrent downloads -repo url: maven
+	 * repository to use instead of maven central -lock: (re)write the lock file
+	 * -locked: resolve exactly the dependencies recorded in the lock file -profile
+	 * default|offline|cached|fresh: which ivy settings to use -settings file: use
+	 * this ivy settings file -full-ivy: resolve local 3Worlds libraries with ivy
+	 * rather than with a {@link LocalResolver} -ttl duration: how long the cached profile trusts
+	 * dynamic revisions -jfr file: record the phases of the run in a flight
+	 * recorder file -shrink: drop the classes unreachable from the entry points
+	 * -keep file: as -shrink, with keep rules (a.b.C, a.b.*, a.b.**) read from file
+	 * -ordered: write classes in startup loading order -order file: as -ordered,
+	 * with the loading order read from a class list -cds: generate a class data sharing archive from a training run
+	 * -layered: pack third party libraries and javafx into separate jars, only
+	 * rebuilt when they change (incompatible with -shrink) -delta: also write a
+	 * patch from the previous tw-dep.jar to the new one, cf. {@link JarDelta}
+	 * -reproducible: make the jars only depend on their inputs (entry order and
+	 * dates, manifest), skip packing when they did not change and write their
+	 * SHA-256 -watch: after building, rebuild incrementally every time libraries
+	 * are published in the local ivy repository -launchers: also write
+	 * modelMaker.jar and modelRunner.jar, in the same pass as tw-dep.jar
+	 * 
+	 * Programs should rather use {@link TwBuild}, which neither prompts nor exits.
 	 * 
 	 * @param args
 	 */
 	public static void main(String[] args) throws IOException {
 		Logging.setDefaultLogLevel(Level.OFF);
 
-		// version data
-		StringBuilder version = new StringBuilder();
-		int major = 0, minor = 0, build = 0;
+		TwBuild twBuild = new TwBuild();
+		CompressionPolicy compressionPolicy = new CompressionPolicy();
 		boolean pack = false;
-
-		// read current version
-		File vfile = Paths.get(workDir, packageDir, "tw-jar-version.txt").toFile();
-		if (vfile.exists())
-			try {
-				BufferedReader fr = new BufferedReader(new FileReader(vfile));
-				String line = fr.readLine();
-				while (line != null) {
-					if (line.startsWith("MAJOR"))
-						major = Integer.valueOf(line.split("=")[1]);
-					if (line.startsWith("MINOR"))
-						minor = Integer.valueOf(line.split("=")[1]);
-					if (line.startsWith("BUILD"))
-						build = Integer.valueOf(line.split("=")[1]);
-					line = fr.readLine();
-				}
-				fr.close();
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
-		// else all version numbers are zero.
-		String oldv = major + DOT + minor + DOT + build;
+		boolean layered = false;
+		boolean shrink = false;
+		boolean watch = false;
 
 		// process command line arguments
 		boolean argError = false;
-		if (args.length == 0)
-			; // do nothing
-		else if (args.length == 1) {
-			if (args[0].equals("-zip"))
-				pack = true;
-			else if (args[0].equals("-major")) {
-				major++;
-				minor = 0;
-				build = 0;
-			} else if (args[0].equals("-minor")) {
-				minor++;
-				build = 0;
-			} else if (args[0].equals("-build")) {
-				build++;
-			} else
-				argError = true;
-		} else if (args.length == 2) {
-			int vindex = 0;
-			if (args[0].equals("-zip")) {
-				pack = true;
-				vindex = 1;
-			} else if (args[1].equals("-zip")) {
+		String versionArg = null;
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("-zip")) {
+				if (pack)
+					argError = true;
 				pack = true;
-				vindex = 0;
-			} else
-				argError = true;
-			if (!argError) {
-				if (args[vindex].equals("-major")) {
-					major++;
-					minor = 0;
-					build = 0;
-				} else if (args[vindex].equals("-minor")) {
-					minor++;
-					build = 0;
-				} else if (args[vindex].equals("-build")) {
-					build++;
-				} else
+			} else if (arg.equals("-incremental"))
+				twBuild.setIncremental(true);
+			else if (arg.equals("-recompress"))
+				twBuild.setRecompress(true);
+			else if (arg.equals("-compression") && i + 1 < args.length)
+				try {
+					compressionPolicy = CompressionPolicy.parse(args[++i]);
+				} catch (IllegalArgumentException e) {
+					System.out.println(e.getMessage());
+					argError = true;
+				}
+			else if (arg.equals("-uncompressed-classes"))
+				compressionPolicy.set(CompressionPolicy.Category.CLASS, CompressionPolicy.STORE);
+			else if (arg.equals("-cache"))
+				twBuild.setCached(true);
+			else if (arg.equals("-lock"))
+				twBuild.setLockMode(DependencySolver.LockMode.UPDATE);
+			else if (arg.equals("-locked"))
+				twBuild.setLockMode(DependencySolver.LockMode.STRICT);
+			else if (arg.equals("-retrieve") && i + 1 < args.length)
+				try {
+					twBuild.setRetrieveMode(DependencySolver.RetrieveMode.valueOf(args[++i].toUpperCase()));
+				} catch (IllegalArgumentException e) {
+					argError = true;
+				}
+			else if (arg.equals("-downloads") && i + 1 < args.length)
+				try {
+					twBuild.setDownloadThreads(Integer.parseInt(args[++i]));
+				} catch (NumberFormatException e) {
+					argError = true;
+				}
+			else if (arg.equals("-repo") && i + 1 < args.length)
+				twBuild.setRemoteRoot(args[++i]);
+			else if (arg.equals("-profile") && i + 1 < args.length)
+				try {
+					twBuild.setSettingsProfile(DependencySolver.SettingsProfile.valueOf(args[++i].toUpperCase()));
+				} catch (IllegalArgumentException e) {
+					argError = true;
+				}
+			else if (arg.equals("-settings") && i + 1 < args.length) {
+				File settingsFile = new File(args[++i]);
+				twBuild.setSettingsFile(settingsFile);
+				if (!settingsFile.exists())
+					argError = true;
+			} else if (arg.equals("-full-ivy"))
+				twBuild.setLocalFastPath(false);
+			else if (arg.equals("-ttl") && i + 1 < args.length)
+				twBuild.setCacheTtl(args[++i]);
+			else if (arg.equals("-jfr") && i + 1 < args.length)
+				twBuild.setJfrFile(new File(args[++i]));
+			else if (arg.equals("-ordered"))
+				twBuild.setOrdered(true);
+			else if (arg.equals("-order") && i + 1 < args.length) {
+				File orderFile = new File(args[++i]);
+				twBuild.setOrderFile(orderFile);
+				if (!orderFile.exists())
+					argError = true;
+			} else if (arg.equals("-cds"))
+				twBuild.setCds(true);
+			else if (arg.equals("-delta"))
+				twBuild.setDelta(true);
+			else if (arg.equals("-reproducible"))
+				twBuild.setReproducible(true);
+			else if (arg.equals("-watch"))
+				watch = true;
+			else if (arg.equals("-launchers"))
+				twBuild.setLaunchers(true);
+			else if (arg.equals("-layered"))
+				layered = true;
+			else if (arg.equals("-shrink"))
+				shrink = true;
+			else if (arg.equals("-keep") && i + 1 < args.length) {
+				File keepFile = new File(args[++i]);
+				twBuild.setKeepFile(keepFile);
+				shrink = true;
+				if (!keepFile.exists())
 					argError = true;
 			}
-		} else
+			else if (arg.equals("-threads") && i + 1 < args.length)
+				try {
+					twBuild.setThreads(Integer.parseInt(args[++i]));
+				} catch (NumberFormatException e) {
+					argError = true;
+				}
+			else if (arg.equals("-major") || arg.equals("-minor") || arg.equals("-build")) {
+				if (versionArg != null)
+					argError = true;
+				versionArg = arg;
+			} else
+				argError = true;
+		}
+		if (versionArg != null)
+			twBuild.setIncrement(TwBuild.Increment.valueOf(versionArg.substring(1).toUpperCase()));
+		// the reachable classes of a layer cannot be known from the layer alone
+		if (layered && shrink)
 			argError = true;
 		// exit if any error in arguments
 		if (argError) {
 			System.out.println("Wrong arguments. Usage ('[...]' means 'optional'):\n" + "Setup [version] [option]\n"
 					+ "  no arguments: regenerate " + Project.TW_DEP_JAR + " using last version information\n"
-					+ "  1 or 2 arguments:\n" + "    option = \"-zip\": regenerate " + Project.TW_DEP_JAR
-					+ " and zip it for distribution\n" + "    version = \"-build\": regenerate " +Project.TW_DEP_JAR
+					+ "  1 or more arguments:\n" + "    option = \"-zip\": regenerate " + Project.TW_DEP_JAR
+					+ " and zip it for distribution\n" + "    option = \"-incremental\": only repack the libraries that changed since the last "
+					+ Project.TW_DEP_JAR + "\n" + "    option = \"-threads n\": compress " + Project.TW_DEP_JAR
+					+ " on n threads (default: number of cores)\n"
+					+ "    option = \"-recompress\": recompress dependencies instead of copying their compressed entries\n"
+					+ "    option = \"-compression policy\": compress entries by category (class, compressed, native, other),"
+					+ " e.g. \"default\", \"uncompressed-classes\", \"fastest\", \"smallest\" or \"class=store,other=9\""
+					+ " (actions: keep, store, 1-9)\n"
+					+ "    option = \"-uncompressed-classes\": store classes without compression, for faster loading\n"
+					+ "    option = \"-cache\": reuse the previous dependency resolution if nothing changed\n"
+					+ "    option = \"-retrieve copy|direct|link\": copy dependencies from the ivy cache (default), "
+					+ "use them in place, or link to them\n"
+					+ "    option = \"-lock\": resolve dependencies and record them in the lock file\n"
+					+ "    option = \"-locked\": resolve exactly the dependencies recorded in the lock file\n"
+					+ "    option = \"-downloads n\": download dependencies on n threads (default: 1)\n"
+					+ "    option = \"-repo url\": use this maven repository instead of maven central\n"
+					+ "    option = \"-profile default|offline|cached|fresh\": check remote repositories at every run (default), "
+					+ "never, only for dynamic revisions older than the ttl, or ignore the ivy cache\n"
+					+ "    option = \"-settings file\": use this ivy settings file instead of the generated one\n"
+					+ "    option = \"-full-ivy\": resolve the 3Worlds libraries of the local ivy repository with ivy too,"
+					+ " instead of reading their ivy files directly\n"
+					+ "    option = \"-ttl duration\": how long the cached profile trusts dynamic revisions (default: 1h)\n"
+					+ "    option = \"-jfr file\": record the duration of every phase in this flight recorder file\n"
+					+ "    option = \"-ordered\": write the classes of " + Project.TW_DEP_JAR
+					+ " in the order they are loaded at startup\n"
+					+ "    option = \"-order file\": as -ordered, with the loading order read from a class list"
+					+ " (as written by java -XX:DumpLoadedClassList=file)\n"
+					+ "    option = \"-cds\": also generate a class data sharing archive of " + Project.TW_DEP_JAR
+					+ " to speed up startup\n"
+					+ "    option = \"-delta\": also write a patch turning the previous " + Project.TW_DEP_JAR
+					+ " into the new one\n"
+					+ "    option = \"-reproducible\": same inputs give the same bytes (fixed entry order and dates,"
+					+ " no build machine in the manifest); unchanged jars are not rewritten and their SHA-256 is saved\n"
+					+ "    option = \"-watch\": then keep running, rebuilding " + Project.TW_DEP_JAR
+					+ " incrementally whenever libraries are published in the local ivy repository\n"
+					+ "    option = \"-launchers\": also write " + MODELMAKER_JAR + " and " + MODELRUNNER_JAR
+					+ " (same content, other main class) in the same pass\n"
+					+ "    option = \"-layered\": pack third party libraries and javafx into " + LIB_DEP_JAR + " and "
+					+ FX_DEP_JAR + ", only rebuilt when they change, and referenced by " + Project.TW_DEP_JAR + "\n"
+					+ "    option = \"-shrink\": only pack the classes reachable from ModelMaker and ModelRunner\n"
+					+ "    option = \"-keep file\": as -shrink, also keeping the classes matching the rules of this file\n"
+					+ "    version = \"-build\": regenerate " +Project.TW_DEP_JAR
 					+ " increasing 'build' version number\n" + "    version = \"-minor\": regenerate " + Project.TW_DEP_JAR
 					+ " increasing 'minor' version number\n" + "    version = \"-major\": regenerate " + Project.TW_DEP_JAR
 					+ " increasing 'major' version number\n" + "Aborting.");
 			System.exit(1);
 		}
-		version.append(major).append(DOT).append(minor).append(DOT).append(build);
-		String os = System.getProperty("os.name")/*.toLowerCase()*/;
-		os+="-java-"+System.getProperty("java.version")+" ";
-		// both manifests will have os - tw.jar doesnt need this but leave for now for debugging.
-		String zipFileName = null;
-		if (pack)
-			zipFileName = Project.TW_HOME + "-" + os + DOT + version.toString() + DOT + "zip";
+		twBuild.setZip(pack).setLayered(layered).setShrink(shrink).setCompressionPolicy(compressionPolicy);
 
 		// last chance to exit without harm
-		if (args.length == 0)
-			System.out.println("Regenerating '" + Project.TW_DEP_JAR + "' version " + os + DOT + version.toString());
-		else if (args.length == 1) {
-			if (pack == true) {
-				System.out.println("Regenerating '" + Project.TW_DEP_JAR + "' version " + os + DOT + version.toString()
-						+ " and packing it into '" + zipFileName + "'");
-			} else {
-				confirmVersionUpgrade(oldv, version.toString());
-				System.out.println("Generating '" + Project.TW_DEP_JAR + "' version " + os + DOT + version.toString());
-			}
-		} else if (args.length == 2) {
-			confirmVersionUpgrade(oldv, version.toString());
-			System.out.println("Generating '" + Project.TW_DEP_JAR + "' version " + os + DOT + version.toString()
-					+ " and packing it into '" + zipFileName + "'");
+		if (versionArg != null && !confirmVersionUpgrade(twBuild.previousVersion(), twBuild.version())) {
+			System.out.println("Aborting upgrade.");
+			System.exit(0);
 		}
 
-		// save new version into version file
-		vfile = Paths.get(workDir, packageDir, "tw-jar-version.txt").toFile();
+		// now do the real work
 		try {
-			BufferedWriter fw = new BufferedWriter(new FileWriter(vfile));
-			fw.write("//GENERATED - DO NOT EDIT THIS FILE");
-			fw.newLine();
-			fw.write("MAJOR=" + major);
-			fw.newLine();
-			fw.write("MINOR=" + minor);
-			fw.newLine();
-			fw.write("BUILD=" + build);
-			fw.newLine();
-			fw.close();
+			if (watch)
+				twBuild.watch(result -> {
+				});
+			else
+				twBuild.run();
 		} catch (IOException e) {
-			e.printStackTrace();
+			System.out.println("Aborting: " + e.getMessage());
+			System.exit(1);
 		}
-
-		// now do the real work
-		System.out.println("Setting up local 3Worlds environment:");
-		System.out.println("Creating the '" + Project.TW_HOME + "' directory");
-		// Window 10 means you get Windows 10.1.0.1?
-		pack3wAll(os /*+ DOT*/ + Integer.toString(major), Integer.toString(minor), Integer.toString(build));
-		FileUtilities.deleteFileTree(new File(DependencySolver.destPath));
-//		if (pack) {
-//			System.out.println("Writing zip file '" + zipFileName + "' for distribution");
-//			zipDir(TW_ROOT, zipFileName);
-//		}
 		System.out.println("FINISHED");
 	}
 }
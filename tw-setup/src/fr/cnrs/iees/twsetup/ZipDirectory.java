@@ -0,0 +1,213 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipException;
+
+/**
+ * The central directory of a zip (jar) file, read directly from the end of the
+ * file. This is much cheaper than opening a {@link java.util.zip.ZipFile} when
+ * only entry names, sizes and checksums are needed, and it gives access to the
+ * local header offsets required to copy compressed data as is.
+ * 
+ * Zip64 archives are supported (the 3Worlds jar easily has more than 65535
+ * entries).
+ * 
+ * The central directory can also be memory-mapped instead of read, which is
+ * faster when scanning many (large) jars since nothing is copied.
+ *
+ */
+public class ZipDirectory {
+
+	static final int LOCAL_HEADER_SIG = 0x04034b50;
+	static final int CENTRAL_HEADER_SIG = 0x02014b50;
+	static final int END_SIG = 0x06054b50;
+	static final int ZIP64_END_SIG = 0x06064b50;
+	static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+	static final int LOCAL_HEADER_SIZE = 30;
+	static final int CENTRAL_HEADER_SIZE = 46;
+	static final int END_SIZE = 22;
+	static final int ZIP64_LOCATOR_SIZE = 20;
+
+	private final List<ZipRecord> records;
+
+	private ZipDirectory(List<ZipRecord> records) {
+		this.records = Collections.unmodifiableList(records);
+	}
+
+	/**
+	 * @return the zip entries, in central directory order
+	 */
+	public List<ZipRecord> records() {
+		return records;
+	}
+
+	/**
+	 * Reads the central directory of a zip file
+	 * 
+	 * @param channel an open channel on the zip file
+	 * @return the central directory
+	 * @throws IOException if the file is not a valid zip file
+	 */
+	public static ZipDirectory read(FileChannel channel) throws IOException {
+		return read(channel, false);
+	}
+
+	/**
+	 * Reads the central directory of a zip file
+	 * 
+	 * @param channel an open channel on the zip file
+	 * @param mapped  if true, the end of the file is memory-mapped instead of read
+	 * @return the central directory
+	 * @throws IOException if the file is not a valid zip file
+	 */
+	public static ZipDirectory read(FileChannel channel, boolean mapped) throws IOException {
+		long fileSize = channel.size();
+		// the end record is followed by a comment of at most 65535 bytes
+		int tailSize = (int) Math.min(fileSize, END_SIZE + 0xFFFF + ZIP64_LOCATOR_SIZE);
+		ByteBuffer tail = region(channel, fileSize - tailSize, tailSize, mapped);
+		int end = -1;
+		for (int i = tailSize - END_SIZE; i >= 0; i--)
+			if (tail.getInt(i) == END_SIG) {
+				end = i;
+				break;
+			}
+		if (end < 0)
+			throw new ZipException("No end of central directory record found");
+		long count = tail.getShort(end + 10) & 0xFFFF;
+		long cdSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+		long cdOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+		int locator = end - ZIP64_LOCATOR_SIZE;
+		if (locator >= 0 && tail.getInt(locator) == ZIP64_LOCATOR_SIG) {
+			long z64end = tail.getLong(locator + 8);
+			ByteBuffer z64 = region(channel, z64end, 56, mapped);
+			if (z64.getInt(0) != ZIP64_END_SIG)
+				throw new ZipException("Invalid zip64 end of central directory record");
+			count = z64.getLong(32);
+			cdSize = z64.getLong(40);
+			cdOffset = z64.getLong(48);
+		}
+		ByteBuffer cd = region(channel, cdOffset, (int) cdSize, mapped);
+		List<ZipRecord> result = new ArrayList<>((int) count);
+		int pos = 0;
+		for (long i = 0; i < count; i++) {
+			if (cd.getInt(pos) != CENTRAL_HEADER_SIG)
+				throw new ZipException("Invalid central directory header at entry " + i);
+			result.add(readRecord(cd, pos));
+			pos += CENTRAL_HEADER_SIZE + (cd.getShort(pos + 28) & 0xFFFF) + (cd.getShort(pos + 30) & 0xFFFF)
+					+ (cd.getShort(pos + 32) & 0xFFFF);
+		}
+		return new ZipDirectory(result);
+	}
+
+	// decodes one central directory header, including its zip64 extra field
+	private static ZipRecord readRecord(ByteBuffer cd, int pos) {
+		int flags = cd.getShort(pos + 8) & 0xFFFF;
+		int method = cd.getShort(pos + 10) & 0xFFFF;
+		int dosTime = cd.getInt(pos + 12);
+		long crc = cd.getInt(pos + 16) & 0xFFFFFFFFL;
+		long csize = cd.getInt(pos + 20) & 0xFFFFFFFFL;
+		long size = cd.getInt(pos + 24) & 0xFFFFFFFFL;
+		int nameLength = cd.getShort(pos + 28) & 0xFFFF;
+		int extraLength = cd.getShort(pos + 30) & 0xFFFF;
+		long offset = cd.getInt(pos + 42) & 0xFFFFFFFFL;
+		byte[] nameBytes = new byte[nameLength];
+		cd.duplicate().position(pos + CENTRAL_HEADER_SIZE).get(nameBytes);
+		// jar files are always UTF-8, whatever the general purpose flag says
+		String name = new String(nameBytes, StandardCharsets.UTF_8);
+		if (size == 0xFFFFFFFFL || csize == 0xFFFFFFFFL || offset == 0xFFFFFFFFL) {
+			int extra = pos + CENTRAL_HEADER_SIZE + nameLength;
+			int extraEnd = extra + extraLength;
+			while (extra + 4 <= extraEnd) {
+				int tag = cd.getShort(extra) & 0xFFFF;
+				int length = cd.getShort(extra + 2) & 0xFFFF;
+				if (tag == 0x0001) {
+					int p = extra + 4;
+					if (size == 0xFFFFFFFFL) {
+						size = cd.getLong(p);
+						p += 8;
+					}
+					if (csize == 0xFFFFFFFFL) {
+						csize = cd.getLong(p);
+						p += 8;
+					}
+					if (offset == 0xFFFFFFFFL)
+						offset = cd.getLong(p);
+					break;
+				}
+				extra += 4 + length;
+			}
+		}
+		return new ZipRecord(name, method, flags, crc, csize, size, dosTime, offset);
+	}
+
+	/**
+	 * Computes the position of the compressed data of an entry, which depends on
+	 * the (variable) length of its local header.
+	 * 
+	 * @param channel an open channel on the zip file the record was read from
+	 * @param record  the entry
+	 * @return the offset of the first byte of compressed data
+	 * @throws IOException if the local header is invalid
+	 */
+	public static long dataOffset(FileChannel channel, ZipRecord record) throws IOException {
+		ByteBuffer header = readFully(channel, record.getLocalHeaderOffset(), LOCAL_HEADER_SIZE);
+		if (header.getInt(0) != LOCAL_HEADER_SIG)
+			throw new ZipException("Invalid local header for entry " + record.getName());
+		return record.getLocalHeaderOffset() + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xFFFF)
+				+ (header.getShort(28) & 0xFFFF);
+	}
+
+	private static ByteBuffer region(FileChannel channel, long position, int length, boolean mapped)
+			throws IOException {
+		if (position < 0 || position + length > channel.size())
+			throw new ZipException("Unexpected end of zip file");
+		if (mapped)
+			return channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+		return readFully(channel, position, length);
+	}
+
+	static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining())
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new ZipException("Unexpected end of zip file");
+		return buffer.flip();
+	}
+
+}
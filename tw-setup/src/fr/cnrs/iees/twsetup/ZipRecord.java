@@ -0,0 +1,164 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * The description of a zip (jar) entry as found in the central directory of a
+ * zip file. Contains everything needed to copy the compressed data of the entry
+ * from one zip file to another without decompressing it.
+ * 
+ * NB: immutable. The local header offset is only meaningful for the file the
+ * record was read from.
+ *
+ */
+public class ZipRecord {
+
+	/** compression method for uncompressed entries */
+	public static final int STORED = 0;
+	/** compression method for deflated entries */
+	public static final int DEFLATED = 8;
+
+	private final String name;
+	private final int method;
+	private final int flags;
+	private final long crc;
+	private final long compressedSize;
+	private final long size;
+	private final int dosTime;
+	private final long localHeaderOffset;
+
+	public ZipRecord(String name, int method, int flags, long crc, long compressedSize, long size, int dosTime,
+			long localHeaderOffset) {
+		this.name = name;
+		this.method = method;
+		this.flags = flags;
+		this.crc = crc;
+		this.compressedSize = compressedSize;
+		this.size = size;
+		this.dosTime = dosTime;
+		this.localHeaderOffset = localHeaderOffset;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getMethod() {
+		return method;
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public long getCrc() {
+		return crc;
+	}
+
+	public long getCompressedSize() {
+		return compressedSize;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return the MS-DOS date (high 16 bits) and time (low 16 bits) of the entry
+	 */
+	public int getDosTime() {
+		return dosTime;
+	}
+
+	public long getLocalHeaderOffset() {
+		return localHeaderOffset;
+	}
+
+	public boolean isDirectory() {
+		return name.endsWith("/");
+	}
+
+	public boolean isEncrypted() {
+		return (flags & 1) != 0;
+	}
+
+	/**
+	 * @return true if the compressed data of this entry can be copied as is into
+	 *         another zip file
+	 */
+	public boolean isTransferable() {
+		return !isEncrypted() && (method == STORED || method == DEFLATED);
+	}
+
+	/**
+	 * @param dosTime a date, cf. {@link #dosTime(long)}
+	 * @return the same entry with another date
+	 */
+	public ZipRecord withDosTime(int dosTime) {
+		return new ZipRecord(name, method, flags, crc, compressedSize, size, dosTime, localHeaderOffset);
+	}
+
+	/**
+	 * converts a java time (in ms) to the MS-DOS date and time format used in zip
+	 * files. Dates before 1980 are set to 1/1/1980.
+	 * 
+	 * @param millis the time to convert
+	 * @return the packed MS-DOS date and time
+	 */
+	public static int dosTime(long millis) {
+		return dosTime(millis, ZoneId.systemDefault());
+	}
+
+	/**
+	 * converts a java time (in ms) to the MS-DOS date and time format, in a given
+	 * time zone
+	 * 
+	 * @param millis the time to convert
+	 * @param zone   the time zone of the MS-DOS date
+	 * @return the packed MS-DOS date and time
+	 */
+	public static int dosTime(long millis, ZoneId zone) {
+		LocalDateTime d = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), zone);
+		if (d.getYear() < 1980)
+			return (1 << 21) | (1 << 16);
+		return (d.getYear() - 1980) << 25 | d.getMonthValue() << 21 | d.getDayOfMonth() << 16 | d.getHour() << 11
+				| d.getMinute() << 5 | d.getSecond() >> 1;
+	}
+
+	@Override
+	public String toString() {
+		return name + " [" + compressedSize + "/" + size + "]";
+	}
+
+}
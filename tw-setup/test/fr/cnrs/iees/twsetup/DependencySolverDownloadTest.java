@@ -0,0 +1,158 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import fr.cnrs.iees.twsetup.DependencySolver.RetrieveMode;
+
+/**
+ * Tests of the parallel downloads of {@link DependencySolver} from a small
+ * maven repository written in a temporary directory, with a {@code file:} url.
+ * The ivy cache is also in the temporary directory (cf. {@code ivy.home}), so
+ * that everything is actually downloaded and checked.
+ *
+ */
+public class DependencySolverDownloadTest {
+
+	private static final String ORG = "org.test";
+
+	@TempDir
+	Path root;
+
+	// publishes a module with one jar, its pom and their sha1 checksums
+	private void publish(String name, String... dependencies) throws IOException {
+		Path dir = root.resolve("m2").resolve(ORG.replace('.', '/')).resolve(name).resolve("1.0");
+		Files.createDirectories(dir);
+		StringBuilder deps = new StringBuilder();
+		for (String d : dependencies)
+			deps.append("<dependency><groupId>" + ORG + "</groupId><artifactId>" + d
+					+ "</artifactId><version>1.0</version></dependency>");
+		write(dir.resolve(name + "-1.0.pom"), "<project><modelVersion>4.0.0</modelVersion><groupId>" + ORG
+				+ "</groupId><artifactId>" + name + "</artifactId><version>1.0</version><dependencies>" + deps
+				+ "</dependencies></project>");
+		write(dir.resolve(name + "-1.0.jar"), "jar of " + name);
+	}
+
+	private static void write(Path file, String content) throws IOException {
+		byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+		Files.write(file, bytes);
+		Files.write(file.resolveSibling(file.getFileName() + ".sha1"), sha1(bytes).getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String sha1(byte[] bytes) {
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-1").digest(bytes))
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// resolves the given modules with 4 download workers
+	private Collection<String> resolve(String... modules) throws IOException {
+		Path ivyFile = root.resolve("ivy.xml");
+		StringBuilder deps = new StringBuilder();
+		for (String m : modules)
+			deps.append("<dependency org=\"" + ORG + "\" name=\"" + m + "\" rev=\"1.0\"/>");
+		Files.write(ivyFile, ("<ivy-module version=\"2.0\"><info organisation=\"t\" module=\"t\"/><dependencies>"
+				+ deps + "</dependencies></ivy-module>").getBytes(StandardCharsets.UTF_8));
+		String ivyHome = System.getProperty("ivy.home");
+		System.setProperty("ivy.home", root.resolve("ivy2").toString());
+		try {
+			DependencySolver solver = new DependencySolver(ivyFile.toString(), true);
+			solver.setRemoteRoot(root.resolve("m2").toUri().toString());
+			solver.setRetrieveMode(RetrieveMode.DIRECT);
+			solver.setLocalFastPath(false);
+			solver.setDownloadThreads(4);
+			return solver.getJars();
+		} finally {
+			if (ivyHome == null)
+				System.clearProperty("ivy.home");
+			else
+				System.setProperty("ivy.home", ivyHome);
+		}
+	}
+
+	private static Set<String> names(Collection<String> jars) {
+		Set<String> names = new TreeSet<>();
+		for (String jar : jars)
+			names.add(new File(jar).getName());
+		return names;
+	}
+
+	@Test
+	public void downloadsAllArtifacts() throws IOException {
+		publish("a", "b");
+		publish("b", "d");
+		publish("c");
+		publish("d");
+		publish("e");
+		Collection<String> jars = resolve("a", "c", "e");
+		assertEquals(Set.of("a-1.0.jar", "b-1.0.jar", "c-1.0.jar", "d-1.0.jar", "e-1.0.jar"), names(jars));
+		// the downloaded jars are those of the repository, in the ivy cache
+		for (String jar : jars) {
+			String name = new File(jar).getName().replace("-1.0.jar", "");
+			assertTrue(Path.of(jar).startsWith(root.resolve("ivy2")));
+			assertArrayEquals(("jar of " + name).getBytes(StandardCharsets.UTF_8), Files.readAllBytes(Path.of(jar)));
+		}
+	}
+
+	@Test
+	public void corruptedChecksumFails() throws IOException {
+		publish("a", "b");
+		publish("b");
+		publish("c");
+		Path sha1 = root.resolve("m2").resolve(ORG.replace('.', '/')).resolve("c").resolve("1.0")
+				.resolve("c-1.0.jar.sha1");
+		Files.write(sha1, sha1(new byte[] { 0 }).getBytes(StandardCharsets.UTF_8));
+		// the corrupted jar is not used, the others are
+		assertEquals(Set.of("a-1.0.jar", "b-1.0.jar"), names(resolve("a", "c")));
+	}
+
+}
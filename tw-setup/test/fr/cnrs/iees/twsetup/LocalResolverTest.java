@@ -0,0 +1,191 @@
+/**************************************************************************
+ *  TW-SETUP - tw-dep.jar generator                                       *
+ *                                                                        *
+ *  Copyright 2018: Shayne Flint, Jacques Gignoux & Ian D. Davies         *
+ *       shayne.flint@anu.edu.au                                          * 
+ *       jacques.gignoux@upmc.fr                                          *
+ *       ian.davies@anu.edu.au                                            * 
+ *                                                                        *
+ *  This module is specifically for generating the dependency file for    *
+ *  3Worlds: tw-dep.jar.                                                  *
+ *                                                                        *
+ **************************************************************************                                       
+ *  This file is part of TW-SETUP.                                        *
+ *                                                                        *
+ *  TW-SETUP is free software: you can redistribute it and/or modify      *
+ *  it under the terms of the GNU General Public License as published by  *
+ *  the Free Software Foundation, either version 3 of the License, or     *
+ *  (at your option) any later version.                                   *
+ *                                                                        *
+ *  TW-SETUP is distributed in the hope that it will be useful,           *
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of        *
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the         *
+ *  GNU General Public License for more details.                          *                         
+ *                                                                        *
+ *  You should have received a copy of the GNU General Public License     *
+ *  along with TW-SETUP.                                                  *
+ *  If not, see <https://www.gnu.org/licenses/gpl.html>                   *
+ *                                                                        *
+ **************************************************************************/
+package fr.cnrs.iees.twsetup;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of {@link LocalResolver} on small repositories written in a temporary
+ * directory, with the layout of the local ivy repository. The expected results
+ * are those of ivy's default resolution (latest revision wins).
+ *
+ */
+public class LocalResolverTest {
+
+	@TempDir
+	Path root;
+
+	// publishes a module with one jar and the given dependency elements
+	private void publish(String org, String name, String rev, String dependencies) throws IOException {
+		Path dir = root.resolve(org).resolve(name).resolve(rev);
+		Files.createDirectories(dir.resolve("ivys"));
+		Files.createDirectories(dir.resolve("jars"));
+		write(dir.resolve("ivys").resolve("ivy.xml"), "<ivy-module version=\"2.0\"><info organisation=\"" + org
+				+ "\" module=\"" + name + "\" revision=\"" + rev + "\"/><dependencies>" + dependencies
+				+ "</dependencies></ivy-module>");
+		write(dir.resolve("jars").resolve(name + ".jar"), name);
+	}
+
+	private File top(String dependencies) throws IOException {
+		Path file = root.resolve("top.xml");
+		write(file, "<ivy-module version=\"2.0\"><info organisation=\"t\" module=\"t\"/><dependencies>"
+				+ dependencies + "</dependencies></ivy-module>");
+		return file.toFile();
+	}
+
+	private static void write(Path file, String content) throws IOException {
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String dependency(String org, String name, String rev) {
+		return "<dependency org=\"" + org + "\" name=\"" + name + "\" rev=\"" + rev + "\"/>";
+	}
+
+	private LocalResolver.Resolution resolve(File ivyFile) throws IOException {
+		// the repository is indexed when the resolver is made
+		return new LocalResolver(root.toFile()).resolve(ivyFile);
+	}
+
+	private static List<String> modules(LocalResolver.Resolution resolution) {
+		List<String> modules = new ArrayList<>();
+		for (LocalResolver.Module m : resolution.modules())
+			modules.add(m.toString());
+		return modules;
+	}
+
+	@Test
+	public void compareRevisions() {
+		assertTrue(LocalResolver.compareRevisions("0.5.2", "0.5.1") > 0);
+		assertTrue(LocalResolver.compareRevisions("1.0", "1.0.1") < 0);
+		assertTrue(LocalResolver.compareRevisions("1.10", "1.9") > 0);
+		assertTrue(LocalResolver.compareRevisions("1.0-dev", "1.0") < 0);
+		assertTrue(LocalResolver.compareRevisions("1.0-rc1", "1.0-final") < 0);
+		assertTrue(LocalResolver.compareRevisions("1.0a", "1.0b") < 0);
+		assertEquals(0, LocalResolver.compareRevisions("1.0", "1.0"));
+	}
+
+	@Test
+	public void matches() throws Exception {
+		assertTrue(LocalResolver.matches("[0.5.1,)", "0.5.2"));
+		assertTrue(LocalResolver.matches("[0.5.1,)", "0.5.1"));
+		assertFalse(LocalResolver.matches("]0.5.1,)", "0.5.1"));
+		assertFalse(LocalResolver.matches("[0.5.1,)", "0.5.0"));
+		assertTrue(LocalResolver.matches("[1.1,2.0[", "1.5"));
+		assertFalse(LocalResolver.matches("[1.1,2.0[", "2.0"));
+		assertTrue(LocalResolver.matches("1.+", "1.12"));
+		assertFalse(LocalResolver.matches("1.+", "2.0"));
+		assertTrue(LocalResolver.matches("latest.integration", "0.0.1"));
+		assertTrue(LocalResolver.matches("0.3.12", "0.3.12"));
+	}
+
+	@Test
+	public void openRangeTakesLatestPublished() throws IOException {
+		publish("o", "generics", "0.5.1", "");
+		publish("o", "generics", "0.5.2", "");
+		publish("o", "generics", "0.4.9", "");
+		LocalResolver.Resolution resolution = resolve(top(dependency("o", "generics", "[0.5.1,)")));
+		assertEquals(List.of("o#generics;0.5.2"), modules(resolution));
+		assertTrue(resolution.isLocal());
+		assertEquals(root.resolve("o/generics/0.5.2/jars/generics.jar").toFile(),
+				resolution.modules().get(0).getJars().get(0));
+	}
+
+	@Test
+	public void laterRevisionRestartsResolution() throws IOException {
+		// B 1.0 is asked first, then evicted by the range of C: its dependency on D
+		// must be dropped, and the dependencies of B 1.5 followed instead
+		publish("o", "B", "1.0", dependency("o", "D", "1"));
+		publish("o", "B", "1.5", dependency("ext", "E", "2"));
+		publish("o", "B", "2.0", "");
+		publish("o", "C", "1.0", dependency("o", "B", "[1.1,2.0["));
+		publish("o", "D", "1", "");
+		LocalResolver.Resolution resolution = resolve(
+				top(dependency("o", "B", "1.0") + dependency("o", "C", "latest.integration")));
+		assertEquals(List.of("o#B;1.5", "o#C;1.0"), modules(resolution));
+		assertFalse(resolution.isLocal());
+		assertEquals(List.of("o#B", "o#C", "ext#E"), resolution.order());
+	}
+
+	@Test
+	public void conflictingRangesTakeLatest() throws IOException {
+		publish("o", "B", "1.0", "");
+		publish("o", "B", "1.5", "");
+		publish("o", "B", "2.0", "");
+		publish("o", "C", "1.0", dependency("o", "B", "[1.1,2.0["));
+		// [1.0,1.2] alone gives 1.0, the range of C gives 1.5: the latest wins
+		LocalResolver.Resolution resolution = resolve(
+				top(dependency("o", "B", "[1.0,1.2]") + dependency("o", "C", "1.0")));
+		assertEquals(List.of("o#B;1.5", "o#C;1.0"), modules(resolution));
+		// in the other order too
+		resolution = resolve(top(dependency("o", "C", "1.0") + dependency("o", "B", "[1.0,1.2]")));
+		assertEquals(List.of("o#C;1.0", "o#B;1.5"), modules(resolution));
+	}
+
+	@Test
+	public void orderIsIvyReportOrder() throws IOException {
+		// ivy lists all the dependencies of a module before following them
+		publish("o", "A", "1", dependency("o", "C", "1") + dependency("x", "X", "1"));
+		publish("o", "B", "1", dependency("o", "D", "1"));
+		publish("o", "C", "1", dependency("o", "E", "1"));
+		publish("o", "D", "1", "");
+		publish("o", "E", "1", dependency("x", "Y", "1"));
+		LocalResolver.Resolution resolution = resolve(top(dependency("o", "A", "1") + dependency("o", "B", "1")));
+		assertEquals(List.of("o#A", "o#B", "o#C", "x#X", "o#E", "x#Y", "o#D"), resolution.order());
+		// the external dependencies are written in the same order
+		String ivyFile = new String(
+				Files.readAllBytes(resolution.writeIvyFile(root.resolve("external.xml").toFile()).toPath()),
+				StandardCharsets.UTF_8);
+		assertTrue(ivyFile.indexOf("name=\"X\"") < ivyFile.indexOf("name=\"Y\""));
+	}
+
+	@Test
+	public void unsupportedIsLeftToIvy() throws IOException {
+		publish("o", "B", "1.0", "");
+		// configuration mapping
+		assertNull(resolve(top("<dependency org=\"o\" name=\"B\" rev=\"1.0\" conf=\"x->y\"/>")));
+		// no local revision matches
+		assertNull(resolve(top(dependency("o", "B", "3.+"))));
+	}
+
+}